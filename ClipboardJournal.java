@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.clipboard;
+
+import android.content.ClipData;
+import android.content.ClipDescription;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of every user's primary clip, so that clipboards survive a restart
+ * of the system server.
+ *
+ * Each record holds the full clip of one user and is framed as
+ * {@code [int length][long crc32][payload]}; a torn record at the end of the file is
+ * ignored. Records are queued by {@link #append} and written by a single journal thread,
+ * which keeps only the newest pending record of each user and syncs the file once per
+ * batch, so a burst of writes costs a single fsync.
+ *
+ * On startup the journal thread compacts the file down to the newest record of each
+ * user and hands those clips to a {@link RestoreListener}, off the boot and binder paths.
+ * The file is compacted again whenever appends have doubled its size, so it stays
+ * proportional to the clips it holds however often they change.
+ *
+ * Styled text is persisted as plain text.
+ */
+final class ClipboardJournal {
+    private static final String TAG = "ClipboardJournal";
+
+    private static final int RECORD_VERSION = 2;
+    // Anything larger is treated as corruption rather than allocated.
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+    private static final int HEADER_BYTES = 4 + 8;
+    // The file is compacted once it is this large and twice its size after the last
+    // compaction.
+    private static final long MIN_COMPACT_BYTES = 4 * 1024 * 1024;
+    private static final long WRITE_RETRY_DELAY_MS = 1000;
+
+    /**
+     * Receives the clips read back from the journal at startup, on the journal thread.
+     */
+    interface RestoreListener {
+        void onClipRestored(int userId, Entry entry);
+    }
+
+    /**
+     * A clip read back from the journal, with the user it was originally set in.
+     */
+    static final class Entry {
+        final int sourceUserId;
+        final ClipData clip;
+
+        Entry(int sourceUserId, ClipData clip) {
+            this.sourceUserId = sourceUserId;
+            this.clip = clip;
+        }
+    }
+
+    private final AtomicFile mFile;
+    private volatile boolean mReady;
+
+    private final Object mLock = new Object();
+    // Records waiting to be written, newest per user. Guarded by mLock.
+    private SparseArray<Entry> mPending = new SparseArray<>();
+    // Records being written by the journal thread. Guarded by mLock.
+    private SparseArray<Entry> mInFlight = new SparseArray<>();
+    // Offset of the newest record of each user in the file. Guarded by mLock.
+    private final SparseLongArray mOffsets = new SparseLongArray();
+    private long mRecordsQueued;
+    private long mRecordsWritten;
+    private long mBatches;
+    private long mCompactedRecords;
+    private long mCompactions;
+    private long mWriteFailures;
+    // Size of the file, and the size at which it is compacted next. Only used by the
+    // journal thread, read by dump().
+    private volatile long mFileBytes;
+    private volatile long mCompactAtBytes = MIN_COMPACT_BYTES;
+
+    ClipboardJournal(File dir) {
+        dir.mkdirs();
+        mFile = new AtomicFile(new File(dir, "clipboard.journal"));
+    }
+
+    /**
+     * Returns the runnable that compacts the journal, restores the clips to {@code listener}
+     * and then writes appended records. It must run on its own thread.
+     */
+    Runnable getWorker(RestoreListener listener) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                runJournal(listener);
+            }
+        };
+    }
+
+    /**
+     * Queues the primary clip of {@code userId}; {@code clip} is null when the clipboard was
+     * cleared. Never blocks on I/O. The clip must not be modified afterwards.
+     */
+    void append(int userId, int sourceUserId, ClipData clip) {
+        synchronized (mLock) {
+            mPending.put(userId, new Entry(sourceUserId, clip));
+            mRecordsQueued++;
+            mLock.notify();
+        }
+    }
+
+    /**
+     * Forgets {@code userId}, for instance after the user was removed.
+     */
+    void removeUser(int userId) {
+        append(userId, userId, null);
+    }
+
+    /**
+     * Reads back the newest clip of every user and passes it to {@code listener}. Users with
+     * a newer record already queued are skipped, the service has moved on from their clip.
+     */
+    private void restore(RestoreListener listener) {
+        final SparseLongArray offsets;
+        synchronized (mLock) {
+            offsets = mOffsets.clone();
+        }
+        if (offsets.size() == 0) {
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(mFile.getBaseFile(), "r")) {
+            for (int i = 0; i < offsets.size(); i++) {
+                final int userId = offsets.keyAt(i);
+                file.seek(offsets.valueAt(i));
+                final byte[] payload = readRecord(file);
+                final Entry entry = payload != null ? decode(payload) : null;
+                if (entry == null) {
+                    continue;
+                }
+                synchronized (mLock) {
+                    if (mPending.get(userId) != null) {
+                        continue;
+                    }
+                }
+                listener.onClipRestored(userId, entry);
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to restore clips", e);
+        }
+    }
+
+    private void runJournal(RestoreListener listener) {
+        try {
+            compact();
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to compact clipboard journal, discarding it", e);
+            mFile.delete();
+            mFileBytes = 0;
+            synchronized (mLock) {
+                mOffsets.clear();
+            }
+        } finally {
+            mReady = true;
+        }
+        restore(listener);
+
+        FileOutputStream out = null;
+        while (true) {
+            final SparseArray<Entry> batch;
+            synchronized (mLock) {
+                try {
+                    while (mPending.size() == 0) {
+                        mLock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                batch = mPending;
+                mPending = mInFlight;
+                mInFlight = batch;
+            }
+            final long[] offsets = new long[batch.size()];
+            long batchStart = -1;
+            try {
+                if (out == null) {
+                    out = new FileOutputStream(mFile.getBaseFile(), true);
+                }
+                batchStart = out.getChannel().position();
+                for (int i = 0; i < batch.size(); i++) {
+                    offsets[i] = out.getChannel().position();
+                    out.write(frame(encode(batch.keyAt(i), batch.valueAt(i))));
+                }
+                // Group commit: one sync for every record of the batch.
+                out.getFD().sync();
+                mFileBytes = out.getChannel().position();
+            } catch (IOException e) {
+                Slog.e(TAG, "Failed to write clipboard journal", e);
+                if (out != null) {
+                    // Drop a partly written batch, a torn record would hide every record
+                    // appended after it.
+                    try {
+                        if (batchStart >= 0) out.getChannel().truncate(batchStart);
+                    } catch (IOException ee) {}
+                    try {
+                        out.close();
+                    } catch (IOException ee) {}
+                }
+                out = null;
+                synchronized (mLock) {
+                    mWriteFailures++;
+                    // Keep the batch, losing a record would bring back an older clip, or
+                    // the clip of a removed user, on the next start. Newer records of the
+                    // same users take precedence.
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (mPending.indexOfKey(batch.keyAt(i)) < 0) {
+                            mPending.put(batch.keyAt(i), batch.valueAt(i));
+                        }
+                    }
+                    batch.clear();
+                }
+                try {
+                    Thread.sleep(WRITE_RETRY_DELAY_MS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+            synchronized (mLock) {
+                for (int i = 0; i < batch.size(); i++) {
+                    if (batch.valueAt(i).clip != null) {
+                        mOffsets.put(batch.keyAt(i), offsets[i]);
+                    } else {
+                        mOffsets.delete(batch.keyAt(i));
+                    }
+                }
+                mRecordsWritten += batch.size();
+                mBatches++;
+                batch.clear();
+            }
+            if (mFileBytes >= mCompactAtBytes) {
+                // The appending stream would keep writing to the replaced file.
+                try {
+                    out.close();
+                } catch (IOException e) {}
+                out = null;
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // Keep appending to the existing file and try again once it has grown.
+                    Slog.e(TAG, "Failed to compact clipboard journal", e);
+                    mCompactAtBytes = mFileBytes * 2;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the newest record of each user that still has a clip,
+     * and indexes the result. Only called on the journal thread, with no append stream open.
+     */
+    private void compact() throws IOException {
+        if (!mFile.getBaseFile().exists()) {
+            mFileBytes = 0;
+            return;
+        }
+        // Newest record of each user, as raw payload; null for a cleared clipboard.
+        final SparseArray<byte[]> latest = new SparseArray<>();
+        int scanned = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(mFile.openRead()))) {
+            byte[] payload;
+            while ((payload = readRecord(in)) != null) {
+                scanned++;
+                final DataInputStream record = new DataInputStream(
+                        new ByteArrayInputStream(payload));
+                // Records of an older format are dropped like cleared clips.
+                final boolean current = record.readInt() == RECORD_VERSION;
+                final int userId = record.readInt();
+                record.readInt(); // source user
+                latest.put(userId, current && record.readBoolean() ? payload : null);
+            }
+        }
+
+        final FileOutputStream out = mFile.startWrite();
+        final SparseLongArray offsets = new SparseLongArray();
+        long offset = 0;
+        try {
+            for (int i = 0; i < latest.size(); i++) {
+                final byte[] payload = latest.valueAt(i);
+                if (payload == null) {
+                    continue;
+                }
+                final byte[] record = frame(payload);
+                out.write(record);
+                offsets.put(latest.keyAt(i), offset);
+                offset += record.length;
+            }
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            mFile.failWrite(out);
+            throw e;
+        }
+        synchronized (mLock) {
+            mOffsets.clear();
+            for (int i = 0; i < offsets.size(); i++) {
+                mOffsets.put(offsets.keyAt(i), offsets.valueAt(i));
+            }
+            mCompactedRecords += scanned - offsets.size();
+            mCompactions++;
+        }
+        mFileBytes = offset;
+        mCompactAtBytes = Math.max(MIN_COMPACT_BYTES, offset * 2);
+    }
+
+    /**
+     * Reads one framed record and returns its payload, or null at the end of the journal
+     * or at a torn or corrupt record.
+     */
+    private static byte[] readRecord(DataInput in) throws IOException {
+        final int length;
+        final long crc;
+        final byte[] payload;
+        try {
+            length = in.readInt();
+            crc = in.readLong();
+            if (length <= 0 || length > MAX_RECORD_BYTES) {
+                return null;
+            }
+            payload = new byte[length];
+            in.readFully(payload);
+        } catch (EOFException e) {
+            return null;
+        }
+        final CRC32 check = new CRC32();
+        check.update(payload);
+        return check.getValue() == crc ? payload : null;
+    }
+
+    private static byte[] frame(byte[] payload) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                HEADER_BYTES + payload.length);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(payload.length);
+        out.writeLong(crc.getValue());
+        out.write(payload);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encode(int userId, Entry entry) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(RECORD_VERSION);
+        out.writeInt(userId);
+        out.writeInt(entry.sourceUserId);
+        final ClipData clip = entry.clip;
+        out.writeBoolean(clip != null);
+        if (clip != null) {
+            final ClipDescription description = clip.getDescription();
+            writeString(out, description.getLabel());
+            out.writeInt(description.getMimeTypeCount());
+            for (int i = 0; i < description.getMimeTypeCount(); i++) {
+                writeString(out, description.getMimeType(i));
+            }
+            out.writeLong(description.getTimestamp());
+            out.writeInt(clip.getItemCount());
+            for (int i = 0; i < clip.getItemCount(); i++) {
+                final ClipData.Item item = clip.getItemAt(i);
+                writeString(out, item.getText());
+                writeString(out, item.getHtmlText());
+                writeString(out, item.getUri() != null ? item.getUri().toString() : null);
+                writeString(out, item.getIntent() != null ? item.getIntent().toUri(0) : null);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(payload));
+        if (in.readInt() != RECORD_VERSION) {
+            return null;
+        }
+        in.readInt(); // user
+        final int sourceUserId = in.readInt();
+        if (!in.readBoolean()) {
+            return null;
+        }
+        final String label = readString(in);
+        final String[] mimeTypes = new String[in.readInt()];
+        for (int i = 0; i < mimeTypes.length; i++) {
+            mimeTypes[i] = readString(in);
+        }
+        final long timestamp = in.readLong();
+        final int itemCount = in.readInt();
+        if (itemCount <= 0) {
+            return null;
+        }
+        ClipData clip = null;
+        for (int i = 0; i < itemCount; i++) {
+            final String text = readString(in);
+            final String htmlText = readString(in);
+            final String uri = readString(in);
+            final String intentUri = readString(in);
+            Intent intent = null;
+            if (intentUri != null) {
+                try {
+                    intent = Intent.parseUri(intentUri, 0);
+                } catch (URISyntaxException e) {
+                    Slog.w(TAG, "Dropping unparsable intent from clip", e);
+                }
+            }
+            final ClipData.Item item = new ClipData.Item(text, htmlText, intent,
+                    uri != null ? Uri.parse(uri) : null);
+            if (clip == null) {
+                final ClipDescription description = new ClipDescription(label, mimeTypes);
+                description.setTimestamp(timestamp);
+                clip = new ClipData(description, item);
+            } else {
+                clip.addItem(item);
+            }
+        }
+        return new Entry(sourceUserId, clip);
+    }
+
+    private static void writeString(DataOutputStream out, CharSequence value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("  Journal: ready=" + mReady + " users=" + mOffsets.size()
+                    + " bytes=" + mFileBytes + " compactAtBytes=" + mCompactAtBytes);
+            pw.println("    records queued=" + mRecordsQueued + " written=" + mRecordsWritten
+                    + " batches=" + mBatches + " compactions=" + mCompactions
+                    + " compacted away=" + mCompactedRecords
+                    + " write failures=" + mWriteFailures);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.clipboard;
+
+import android.content.ClipData;
+
+import java.util.List;
+
+/**
+ * Clipboard service local system service interface.
+ *
+ * Only for use within the system server.
+ */
+public abstract class ClipboardManagerInternal {
+
+    /**
+     * Returns the most recent clips of {@code userId}, newest first, starting with the
+     * current primary clip. The list is empty when the clipboard history is disabled.
+     * No URI permissions are granted for the returned clips. The clips are the ones held
+     * by the clipboard, not copies, and must not be modified.
+     */
+    public abstract List<ClipData> getPrimaryClipHistory(int userId);
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.clipboard;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency histograms of the clipboard service: one per binder entry point and internal
+ * operation, plus wait and hold times of the service locks.
+ */
+final class ClipboardMetrics {
+    static final int SET_PRIMARY_CLIP = 0;
+    static final int GET_PRIMARY_CLIP = 1;
+    static final int GET_PRIMARY_CLIP_DESCRIPTION = 2;
+    static final int HAS_PRIMARY_CLIP = 3;
+    static final int HAS_CLIPBOARD_TEXT = 4;
+    static final int ADD_LISTENER = 5;
+    static final int REMOVE_LISTENER = 6;
+    static final int BROADCAST = 7;
+    static final int GRANT_URIS = 8;
+    static final int REVOKE_URIS = 9;
+    /** From a clip change to the delivery of its notification to one listener. */
+    static final int NOTIFY_DELAY = 10;
+    static final int OPEN_PRIMARY_CLIP_TEXT = 11;
+    private static final int OPERATION_COUNT = 12;
+
+    private static final String[] OPERATION_NAMES = {
+        "setPrimaryClip",
+        "getPrimaryClip",
+        "getPrimaryClipDescription",
+        "hasPrimaryClip",
+        "hasClipboardText",
+        "addPrimaryClipChangedListener",
+        "removePrimaryClipChangedListener",
+        "broadcast",
+        "grantUris",
+        "revokeUris",
+        "listener notify delay",
+        "openPrimaryClipText",
+    };
+
+    /** The per-user PerUserClipboard monitors. */
+    static final int LOCK_CLIPBOARD = 0;
+    /** The monitor of the mClipboards map. */
+    static final int LOCK_CLIPBOARDS_MAP = 1;
+    private static final int LOCK_COUNT = 2;
+
+    private static final String[] LOCK_NAMES = {
+        "clipboard",
+        "mClipboards",
+    };
+
+    private final LatencyHistogram[] mOperations = new LatencyHistogram[OPERATION_COUNT];
+    private final LatencyHistogram[] mLockWaits = new LatencyHistogram[LOCK_COUNT];
+    private final LatencyHistogram[] mLockHolds = new LatencyHistogram[LOCK_COUNT];
+
+    ClipboardMetrics() {
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            mOperations[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < LOCK_COUNT; i++) {
+            mLockWaits[i] = new LatencyHistogram();
+            mLockHolds[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Returns the start time to later pass to {@link #end}.
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    void end(int operation, long startNanos) {
+        mOperations[operation].recordSince(startNanos);
+    }
+
+    /**
+     * Called first thing inside a synchronized block, with the time taken just before
+     * entering it. Returns the start of the hold time to pass to {@link #lockReleased}.
+     */
+    long lockAcquired(int lock, long waitStartNanos) {
+        final long now = System.nanoTime();
+        mLockWaits[lock].record(now - waitStartNanos);
+        return now;
+    }
+
+    void lockReleased(int lock, long holdStartNanos) {
+        mLockHolds[lock].recordSince(holdStartNanos);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  Latency:");
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            mOperations[i].dump(pw, OPERATION_NAMES[i]);
+        }
+        pw.println("  Locks:");
+        for (int i = 0; i < LOCK_COUNT; i++) {
+            mLockWaits[i].dump(pw, LOCK_NAMES[i] + " wait");
+            mLockHolds[i].dump(pw, LOCK_NAMES[i] + " hold");
+        }
+    }
+}
@@ -20,6 +20,8 @@ import android.app.ActivityManager;
 import android.app.AppGlobals;
 import android.app.AppOpsManager;
 import android.app.IActivityManager;
+import android.app.IUidObserver;
+import android.content.BroadcastReceiver;
 import android.content.ClipData;
 import android.content.ClipDescription;
 import android.content.ContentProvider;
@@ -27,35 +29,83 @@ import android.content.IClipboard;
 import android.content.IOnPrimaryClipChangedListener;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.IUserManager;
+import android.os.Looper;
+import android.os.Message;
 import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.os.UserManagerInternal;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Slog;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.DumpUtils;
+import com.android.server.LocalServices;
+import com.android.server.ServiceThread;
 import com.android.server.SystemService;
 
-import java.util.HashSet;
+import libcore.io.IoUtils;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.lang.Thread;
 import java.lang.Runnable;
 import java.lang.InterruptedException;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 
 // The following class is Android Emulator specific. It is used to read and
 // write contents of the host system's clipboard.
@@ -65,9 +115,67 @@ class HostClipboardMonitor implements Runnable {
     }
 
     private RandomAccessFile mPipe = null;
+    // Reads and writes go through separate channels over the pipe's descriptor. A single
+    // FileChannel serializes both on one position lock, so a read blocked waiting for the
+    // host would stall every write.
+    private FileChannel mReadChannel = null;
+    private volatile FileChannel mWriteChannel = null;
     private HostClipboardCallback mHostClipboardCallback;
     private static final String PIPE_NAME = "pipe:clipboard";
     private static final String PIPE_DEVICE = "/dev/qemu_pipe";
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    // Larger frames are read and dropped rather than delivered.
+    private static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+    // Buffers grown past this for one large frame are released once it has been decoded.
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_BACKOFF = 3;
+
+    private static final long INITIAL_BACKOFF_MS = 100;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 30 * 1000;
+
+    private final long mMaxBackoffMs;
+    // Written only by run(), read by dump().
+    private volatile int mState = STATE_DISCONNECTED;
+    private volatile long mConnectAttempts;
+    private volatile long mConnectFailures;
+    private volatile long mConnects;
+    private volatile long mDisconnects;
+    private volatile long mCurrentBackoffMs;
+    private volatile long mOversizedFrames;
+
+    // Buffers reused for every frame received from the host; only touched by run().
+    private final ByteBuffer mSizeBuffer =
+            ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    private CharBuffer mCharBuffer = CharBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Only touched by the writer thread.
+    private final ByteBuffer mWriteSizeBuffer =
+            ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+
+    // Single-slot outbound queue: only the latest value matters to the host, so a newer
+    // clip simply replaces one the writer has not picked up yet.
+    private final Object mPendingLock = new Object();
+    private String mPendingHostClip = null;
+    // Latest text the host is known to hold, either received from it or written to it.
+    private String mLastHostClip = null;
+    private long mSkippedHostWrites;
+    private long mQueuedWrites;
+    private long mSupersededWrites;
+    private long mCompletedWrites;
+    private long mFailedWrites;
+
+    // The read histogram starts once a frame's size has arrived, so the idle wait for the
+    // host to send something is not counted.
+    private final LatencyHistogram mReadLatency = new LatencyHistogram();
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram();
 
     private void openPipe() {
         try {
@@ -84,55 +192,283 @@ class HostClipboardMonitor implements Runnable {
                 PIPE_NAME.length());
             mPipe = new RandomAccessFile(PIPE_DEVICE, "rw");
             mPipe.write(b);
+            mReadChannel = new FileInputStream(mPipe.getFD()).getChannel();
+            mWriteChannel = new FileOutputStream(mPipe.getFD()).getChannel();
         } catch (IOException e) {
-            try {
-                if (mPipe != null) mPipe.close();
-            } catch (IOException ee) {}
-            mPipe = null;
+            closePipe();
+        }
+    }
+
+    private void closePipe() {
+        mWriteChannel = null;
+        synchronized (mPendingLock) {
+            // A new connection may be to a host whose clipboard we know nothing about.
+            mLastHostClip = null;
         }
+        try {
+            if (mReadChannel != null) mReadChannel.close();
+        } catch (IOException e) {}
+        mReadChannel = null;
+        try {
+            if (mPipe != null) mPipe.close();
+        } catch (IOException e) {}
+        mPipe = null;
     }
 
     public HostClipboardMonitor(HostClipboardCallback cb) {
+        this(cb, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    /**
+     * @param maxBackoffMs ceiling of the delay between two attempts to open the pipe.
+     */
+    public HostClipboardMonitor(HostClipboardCallback cb, long maxBackoffMs) {
         mHostClipboardCallback = cb;
+        mMaxBackoffMs = Math.max(INITIAL_BACKOFF_MS, maxBackoffMs);
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    static String stateToString(int state) {
+        switch (state) {
+            case STATE_DISCONNECTED: return "DISCONNECTED";
+            case STATE_CONNECTING: return "CONNECTING";
+            case STATE_CONNECTED: return "CONNECTED";
+            case STATE_BACKOFF: return "BACKOFF";
+            default: return Integer.toString(state);
+        }
+    }
+
+    private long nextBackoff(long backoffMs) {
+        return backoffMs == 0 ? INITIAL_BACKOFF_MS : Math.min(backoffMs * 2, mMaxBackoffMs);
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mReadChannel.read(buffer) < 0) {
+                throw new EOFException("Host clipboard pipe closed");
+            }
+        }
+    }
+
+    /**
+     * Reads one length-prefixed frame from the host and decodes it as UTF-8, growing the
+     * reusable buffers when a frame does not fit. Returns null for a frame over
+     * {@link #MAX_FRAME_SIZE}, which is skipped.
+     */
+    private String readFrame() throws IOException {
+        mSizeBuffer.clear();
+        readFully(mSizeBuffer);
+        final long readStart = System.nanoTime();
+        final int size = mSizeBuffer.getInt(0);
+        if (size < 0) {
+            throw new IOException("Invalid host clipboard frame size " + size);
+        }
+        if (size > MAX_FRAME_SIZE) {
+            // Drain the frame so the next one starts in sync.
+            for (int remaining = size; remaining > 0; ) {
+                mReadBuffer.clear();
+                mReadBuffer.limit(Math.min(remaining, mReadBuffer.capacity()));
+                readFully(mReadBuffer);
+                remaining -= mReadBuffer.limit();
+            }
+            mReadLatency.recordSince(readStart);
+            mOversizedFrames++;
+            Slog.w("HostClipboardMonitor", "Dropped host clipboard frame of " + size
+                    + " bytes");
+            return null;
+        }
+        if (mReadBuffer.capacity() < size) {
+            mReadBuffer = ByteBuffer.allocateDirect(
+                    Math.max(size, mReadBuffer.capacity() * 2));
+        }
+        mReadBuffer.clear();
+        mReadBuffer.limit(size);
+        readFully(mReadBuffer);
+        mReadBuffer.flip();
+
+        // UTF-8 never decodes to more chars than it has bytes.
+        if (mCharBuffer.capacity() < size) {
+            mCharBuffer = CharBuffer.allocate(Math.max(size, mCharBuffer.capacity() * 2));
+        }
+        mCharBuffer.clear();
+        mDecoder.reset();
+        mDecoder.decode(mReadBuffer, mCharBuffer, true);
+        mDecoder.flush(mCharBuffer);
+        mCharBuffer.flip();
+        final String contents = mCharBuffer.toString();
+        if (mReadBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            mReadBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+        }
+        if (mCharBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            mCharBuffer = CharBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+        mReadLatency.recordSince(readStart);
+        return contents;
     }
 
     @Override
     public void run() {
+        // Zero means the next attempt to open the pipe happens right away.
+        long backoffMs = 0;
+        // Whether the current connection has delivered a frame, proving that the host
+        // actually serves the clipboard rather than accepting and dropping connections.
+        boolean receivedFrame = false;
         while(!Thread.interrupted()) {
             try {
                 // There's no guarantee that QEMU pipes will be ready at the moment
-                // this method is invoked. We simply try to get the pipe open and
-                // retry on failure indefinitely.
-                while (mPipe == null) {
+                // this method is invoked, and emulators without the clipboard service
+                // never provide one. Retry with exponential backoff and jitter so that
+                // a missing pipe does not keep waking the CPU.
+                if (mPipe == null) {
+                    if (backoffMs > 0) {
+                        mState = STATE_BACKOFF;
+                        // Sleep somewhere in [backoff / 2, backoff].
+                        Thread.sleep(backoffMs / 2
+                                + ThreadLocalRandom.current().nextLong(backoffMs / 2 + 1));
+                    }
+                    mState = STATE_CONNECTING;
+                    mConnectAttempts++;
                     openPipe();
-                    Thread.sleep(100);
-                }
-                int size = mPipe.readInt();
-                size = Integer.reverseBytes(size);
-                byte[] receivedData = new byte[size];
-                mPipe.readFully(receivedData);
-                mHostClipboardCallback.onHostClipboardUpdated(
-                    new String(receivedData));
+                    if (mPipe == null) {
+                        mConnectFailures++;
+                        backoffMs = nextBackoff(backoffMs);
+                        mCurrentBackoffMs = backoffMs;
+                        mState = STATE_DISCONNECTED;
+                        continue;
+                    }
+                    mConnects++;
+                    receivedFrame = false;
+                    mState = STATE_CONNECTED;
+                }
+                final String contents = readFrame();
+                receivedFrame = true;
+                backoffMs = 0;
+                mCurrentBackoffMs = 0;
+                if (contents == null) {
+                    continue;
+                }
+                synchronized (mPendingLock) {
+                    mLastHostClip = contents;
+                }
+                mHostClipboardCallback.onHostClipboardUpdated(contents);
             } catch (IOException e) {
-                try {
-                    mPipe.close();
-                } catch (IOException ee) {}
-                mPipe = null;
-            } catch (InterruptedException e) {}
+                // A connection that delivered frames was working, so treat its loss as
+                // transient and reconnect at once. One that died before its first frame
+                // backs off like a failed open, or it would be retried in a tight loop.
+                closePipe();
+                mDisconnects++;
+                if (!receivedFrame) {
+                    backoffMs = nextBackoff(backoffMs);
+                    mCurrentBackoffMs = backoffMs;
+                }
+                mState = STATE_DISCONNECTED;
+            } catch (InterruptedException e) {
+                // Asked to stop while backing off.
+                Thread.currentThread().interrupt();
+                break;
+            }
         }
+        closePipe();
+        mState = STATE_DISCONNECTED;
     }
 
+    /**
+     * Queues {@code content} for the host and returns immediately. The write itself happens
+     * on the thread running {@link #getWriter()}, so a slow or stalled pipe never blocks
+     * the caller.
+     */
     public void setHostClipboard(String content) {
+        synchronized (mPendingLock) {
+            if (mPendingHostClip == null && content.equals(mLastHostClip)) {
+                mSkippedHostWrites++;
+                return;
+            }
+            if (mPendingHostClip != null) {
+                mSupersededWrites++;
+            }
+            mPendingHostClip = content;
+            mQueuedWrites++;
+            mPendingLock.notify();
+        }
+    }
+
+    /**
+     * Returns the runnable that drains values queued by {@link #setHostClipboard} to the
+     * pipe. It must run on its own thread.
+     */
+    public Runnable getWriter() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.interrupted()) {
+                    final String content;
+                    synchronized (mPendingLock) {
+                        try {
+                            while (mPendingHostClip == null) {
+                                mPendingLock.wait();
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        content = mPendingHostClip;
+                        mPendingHostClip = null;
+                    }
+                    writeToPipe(content);
+                }
+            }
+        };
+    }
+
+    private void writeToPipe(String content) {
+        final FileChannel channel = mWriteChannel;
+        if (channel == null) {
+            // Not connected; the host gets the next value written after the pipe opens.
+            return;
+        }
+        final long start = System.nanoTime();
         try {
-            if (mPipe != null) {
-                mPipe.writeInt(Integer.reverseBytes(content.getBytes().length));
-                mPipe.write(content.getBytes());
+            final ByteBuffer data = StandardCharsets.UTF_8.encode(content);
+            mWriteSizeBuffer.clear();
+            mWriteSizeBuffer.putInt(0, data.remaining());
+            while (mWriteSizeBuffer.hasRemaining()) {
+                channel.write(mWriteSizeBuffer);
+            }
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            mWriteLatency.recordSince(start);
+            synchronized (mPendingLock) {
+                mCompletedWrites++;
+                mLastHostClip = content;
             }
         } catch(IOException e) {
+            synchronized (mPendingLock) {
+                mFailedWrites++;
+            }
             Slog.e("HostClipboardMonitor",
                    "Failed to set host clipboard " + e.getMessage());
         }
     }
+
+    public void dump(PrintWriter pw) {
+        pw.println("  Host clipboard:");
+        pw.println("    state=" + stateToString(mState) + " backoffMs=" + mCurrentBackoffMs
+                + " maxBackoffMs=" + mMaxBackoffMs);
+        pw.println("    connect attempts=" + mConnectAttempts + " failures=" + mConnectFailures
+                + " connects=" + mConnects + " disconnects=" + mDisconnects
+                + " oversizedFrames=" + mOversizedFrames);
+        synchronized (mPendingLock) {
+            pw.println("    writes queued=" + mQueuedWrites + " superseded=" + mSupersededWrites
+                    + " completed=" + mCompletedWrites + " failed=" + mFailedWrites
+                    + " skipped=" + mSkippedHostWrites
+                    + " pending=" + (mPendingHostClip != null));
+        }
+        mReadLatency.dump(pw, "read");
+        mWriteLatency.dump(pw, "write");
+    }
 }
 
 /**
@@ -141,29 +477,166 @@ class HostClipboardMonitor implements Runnable {
 public class ClipboardService extends SystemService {
 
     private static final String TAG = "ClipboardService";
-    private static final boolean IS_EMULATOR =
-        SystemProperties.getBoolean("ro.kernel.qemu", false);
+    // Text clips shorter than this are not streamed; callers fall back to getPrimaryClip().
+    private static final int STREAM_MIN_CHARS = 64 * 1024;
+    private static final int STREAM_CHUNK_BYTES = 64 * 1024;
+    // Streams written at once; further requests get null and fall back to getPrimaryClip().
+    private static final int MAX_CONCURRENT_STREAMS = 4;
+    // A reader that lets the pipe stay full this long loses the stream.
+    private static final long STREAM_WRITE_TIMEOUT_MS = 10 * 1000;
+
+    // Configuration, read from system properties through the Injector when the service is
+    // created.
 
+    // When positive, clip changes within this many milliseconds of a pending notification
+    // are folded into it, so bursty writers cause one dispatch for the latest clip.
+    private final long mNotifyCoalesceWindowMs;
+    // Plain text items of at least this many chars are moved off the heap into ashmem, as
+    // long as the user's spill budget allows it. 0, the default, disables spilling.
+    private final int mSpillThresholdChars;
+    private final long mSpillBudgetBytesPerUser;
+    // Bounds of the per-user clip history available to trusted system callers through
+    // ClipboardManagerInternal. A size of 0 disables the history.
+    private final int mHistoryMaxEntries;
+    private final long mHistoryMaxBytes;
+    private final long mHistoryMaxAgeMs;
+
+    private final Injector mInjector;
     private final IActivityManager mAm;
     private final IUserManager mUm;
-    private final PackageManager mPm;
     private final AppOpsManager mAppOps;
     private final IBinder mPermissionOwner;
+    private final AccessDecisionCache mAccessCache = new AccessDecisionCache();
+    private final PackageOwnershipCache mOwnershipCache = new PackageOwnershipCache();
+
+    // Profile group of each user that has written a clip, kept up to date from user and
+    // restriction change events so that writes need no UserManager IPC.
+    private final SparseArray<ProfileGroup> mProfileGroups = new SparseArray<>();
+    private long mProfileGroupsGeneration;
+    private final DispatchHandler mDispatchHandler;
+    private final AtomicLong mDispatchedNotifications = new AtomicLong();
+    private final AtomicLong mSuppressedNotifications = new AtomicLong();
+    private final AtomicLong mListenerAccessChecks = new AtomicLong();
+    private final AtomicLong mSkippedDuplicateWrites = new AtomicLong();
+    private final UriPermissionStats mUriPermissionStats = new UriPermissionStats();
+    private final ClipboardMetrics mMetrics = new ClipboardMetrics();
+    // Writers of openPrimaryClipText() streams, bounded so that readers which never read
+    // cannot tie up threads of the system server.
+    private final ThreadPoolExecutor mStreamExecutor;
+    // Persists every user's primary clip when enabled, null otherwise.
+    private final ClipboardJournal mJournal;
     private HostClipboardMonitor mHostClipboardMonitor = null;
     private Thread mHostMonitorThread = null;
+    private Thread mHostWriterThread = null;
 
     private final SparseArray<PerUserClipboard> mClipboards = new SparseArray<>();
 
+    // Copy of mClipboards republished on every change, so lookups of existing users take
+    // no lock. Only get() may be called on it since other accessors can compact in place.
+    private volatile SparseArray<PerUserClipboard> mClipboardsSnapshot = new SparseArray<>();
+
+    /**
+     * Everything the service reaches outside of its own state: system services, the Binder
+     * calling identity, system properties, the data directory and the threads it starts.
+     * Replaced with in-process fakes to run the service off device.
+     */
+    @VisibleForTesting
+    static class Injector {
+        private final Context mContext;
+
+        Injector(Context context) {
+            mContext = context;
+        }
+
+        IActivityManager getActivityManager() {
+            return ActivityManager.getService();
+        }
+
+        IUserManager getUserManager() {
+            return (IUserManager) ServiceManager.getService(Context.USER_SERVICE);
+        }
+
+        UserManagerInternal getUserManagerInternal() {
+            return LocalServices.getService(UserManagerInternal.class);
+        }
+
+        IPackageManager getPackageManager() {
+            return AppGlobals.getPackageManager();
+        }
+
+        AppOpsManager getAppOpsManager() {
+            return (AppOpsManager) mContext.getSystemService(Context.APP_OPS_SERVICE);
+        }
+
+        int getCallingUid() {
+            return Binder.getCallingUid();
+        }
+
+        long clearCallingIdentity() {
+            return Binder.clearCallingIdentity();
+        }
+
+        void restoreCallingIdentity(long token) {
+            Binder.restoreCallingIdentity(token);
+        }
+
+        boolean getBooleanProperty(String key, boolean def) {
+            return SystemProperties.getBoolean(key, def);
+        }
+
+        int getIntProperty(String key, int def) {
+            return SystemProperties.getInt(key, def);
+        }
+
+        long getLongProperty(String key, long def) {
+            return SystemProperties.getLong(key, def);
+        }
+
+        File getDataSystemDirectory() {
+            return Environment.getDataSystemDirectory();
+        }
+
+        /**
+         * Returns the looper of a newly started thread, on which listeners are notified.
+         */
+        Looper getDispatchLooper() {
+            final ServiceThread dispatchThread = new ServiceThread(TAG + ".dispatch",
+                    Process.THREAD_PRIORITY_FOREGROUND, false /* allowIo */);
+            dispatchThread.start();
+            return dispatchThread.getLooper();
+        }
+
+        Thread newThread(Runnable runnable, String name) {
+            return new Thread(runnable, name);
+        }
+    }
+
     /**
      * Instantiates the clipboard.
      */
     public ClipboardService(Context context) {
+        this(context, new Injector(context));
+    }
+
+    @VisibleForTesting
+    ClipboardService(Context context, Injector injector) {
         super(context);
 
-        mAm = ActivityManager.getService();
-        mPm = getContext().getPackageManager();
-        mUm = (IUserManager) ServiceManager.getService(Context.USER_SERVICE);
-        mAppOps = (AppOpsManager) getContext().getSystemService(Context.APP_OPS_SERVICE);
+        mInjector = injector;
+        mAm = injector.getActivityManager();
+        mUm = injector.getUserManager();
+        mAppOps = injector.getAppOpsManager();
+        mNotifyCoalesceWindowMs = injector.getLongProperty(
+                "persist.sys.clipboard.coalesce_ms", 0);
+        mSpillThresholdChars = injector.getIntProperty(
+                "persist.sys.clipboard.spill_threshold", 0);
+        mSpillBudgetBytesPerUser = injector.getLongProperty(
+                "persist.sys.clipboard.spill_budget", 64L * 1024 * 1024);
+        mHistoryMaxEntries = injector.getIntProperty("persist.sys.clipboard.history_size", 0);
+        mHistoryMaxBytes = injector.getLongProperty(
+                "persist.sys.clipboard.history_bytes", 4L * 1024 * 1024);
+        mHistoryMaxAgeMs = injector.getLongProperty(
+                "persist.sys.clipboard.history_age_ms", 60L * 60 * 1000);
         IBinder permOwner = null;
         try {
             permOwner = mAm.newUriPermissionOwner("clipboard");
@@ -171,7 +644,22 @@ public class ClipboardService extends SystemService {
             Slog.w("clipboard", "AM dead", e);
         }
         mPermissionOwner = permOwner;
-        if (IS_EMULATOR) {
+        mDispatchHandler = new DispatchHandler(injector.getDispatchLooper());
+        mStreamExecutor = new ThreadPoolExecutor(0, MAX_CONCURRENT_STREAMS, 30,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                r -> injector.newThread(r, "ClipboardStream"));
+        // Keeps clips across system server restarts in an on-disk journal.
+        if (injector.getBooleanProperty("persist.sys.clipboard.persist", false)) {
+            // All disk work, including compaction of the previous journal and reading back
+            // the clips, happens on the journal thread, never on binder threads.
+            mJournal = new ClipboardJournal(
+                    new File(injector.getDataSystemDirectory(), "clipboard"));
+            injector.newThread(mJournal.getWorker(this::restoreClip), "ClipboardJournal")
+                    .start();
+        } else {
+            mJournal = null;
+        }
+        if (injector.getBooleanProperty("ro.kernel.qemu", false)) {
             mHostClipboardMonitor = new HostClipboardMonitor(
                 new HostClipboardMonitor.HostClipboardCallback() {
                     @Override
@@ -180,47 +668,888 @@ public class ClipboardService extends SystemService {
                             new ClipData("host clipboard",
                                          new String[]{"text/plain"},
                                          new ClipData.Item(contents));
-                        synchronized(mClipboards) {
-                            setPrimaryClipInternal(getClipboard(0), clip);
-                        }
+                        PerUserClipboard clipboard = getClipboard(0);
+                        spillLargeItems(clipboard, clip);
+                        runWithClipboardsLocked(new PerUserClipboard[] { clipboard }, 0,
+                                () -> setPrimaryClipInternal(clipboard, clip));
                     }
-                });
-            mHostMonitorThread = new Thread(mHostClipboardMonitor);
+                }, injector.getLongProperty("ro.kernel.qemu.clipboard.max_backoff_ms",
+                        HostClipboardMonitor.DEFAULT_MAX_BACKOFF_MS));
+            mHostMonitorThread = injector.newThread(mHostClipboardMonitor,
+                    "HostClipboardMonitor");
             mHostMonitorThread.start();
+            mHostWriterThread = injector.newThread(mHostClipboardMonitor.getWriter(),
+                    "HostClipboardWriter");
+            mHostWriterThread.start();
         }
     }
 
     @Override
     public void onStart() {
+        LocalServices.addService(ClipboardManagerInternal.class, new LocalService());
+        registerAccessCacheInvalidation();
+        registerProfileGroupInvalidation();
         publishBinderService(Context.CLIPBOARD_SERVICE, new ClipboardImpl());
     }
 
+    /**
+     * Drops {@link #mProfileGroups} whenever users come and go or the cross-profile copy
+     * restriction changes.
+     */
+    private void registerProfileGroupInvalidation() {
+        final IntentFilter userFilter = new IntentFilter();
+        userFilter.addAction(Intent.ACTION_USER_ADDED);
+        userFilter.addAction(Intent.ACTION_USER_REMOVED);
+        getContext().registerReceiverAsUser(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidateProfileGroups();
+                if (mJournal != null && Intent.ACTION_USER_REMOVED.equals(intent.getAction())) {
+                    mJournal.removeUser(
+                            intent.getIntExtra(Intent.EXTRA_USER_HANDLE, UserHandle.USER_NULL));
+                }
+            }
+        }, UserHandle.ALL, userFilter, null, null);
+
+        mInjector.getUserManagerInternal().addUserRestrictionsListener(
+                new UserManagerInternal.UserRestrictionsListener() {
+                    @Override
+                    public void onUserRestrictionsChanged(int userId, Bundle newRestrictions,
+                            Bundle prevRestrictions) {
+                        if (newRestrictions.getBoolean(
+                                UserManager.DISALLOW_CROSS_PROFILE_COPY_PASTE)
+                                != prevRestrictions.getBoolean(
+                                        UserManager.DISALLOW_CROSS_PROFILE_COPY_PASTE)) {
+                            invalidateProfileGroups();
+                            if (newRestrictions.getBoolean(
+                                    UserManager.DISALLOW_CROSS_PROFILE_COPY_PASTE)) {
+                                removeSharedHistory(userId);
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Hooks up the events that can change the outcome of {@link #clipboardAccessAllowed}
+     * so that {@link #mAccessCache} never serves a stale decision. Package changes also
+     * reset {@link #mOwnershipCache}.
+     */
+    private void registerAccessCacheInvalidation() {
+        final AppOpsManager.OnOpChangedListener opListener =
+                new AppOpsManager.OnOpChangedListener() {
+                    @Override
+                    public void onOpChanged(String op, String packageName) {
+                        mAccessCache.invalidatePackage(packageName);
+                        invalidateListenerAccess(packageName);
+                    }
+                };
+        mAppOps.startWatchingMode(AppOpsManager.OP_READ_CLIPBOARD, null, opListener);
+        mAppOps.startWatchingMode(AppOpsManager.OP_WRITE_CLIPBOARD, null, opListener);
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        getContext().registerReceiverAsUser(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                final Uri data = intent.getData();
+                final String packageName = data != null ? data.getSchemeSpecificPart() : null;
+                if (packageName != null) {
+                    mAccessCache.invalidatePackage(packageName);
+                    mOwnershipCache.invalidatePackage(packageName);
+                    invalidateListenerAccess(packageName);
+                }
+            }
+        }, UserHandle.ALL, packageFilter, null, null);
+
+        // Instant apps may only use the clipboard while in the foreground, so decisions for
+        // a uid are dropped whenever it crosses the foreground cut point or goes away.
+        try {
+            mAm.registerUidObserver(new IUidObserver.Stub() {
+                @Override
+                public void onUidStateChanged(int uid, int procState, long procStateSeq) {
+                    mAccessCache.invalidateUid(uid);
+                    invalidateListenerAccessForUid(uid);
+                }
+
+                @Override
+                public void onUidGone(int uid, boolean disabled) {
+                    mAccessCache.invalidateUid(uid);
+                    invalidateListenerAccessForUid(uid);
+                }
+
+                @Override
+                public void onUidActive(int uid) {
+                    mAccessCache.invalidateUid(uid);
+                    invalidateListenerAccessForUid(uid);
+                }
+
+                @Override
+                public void onUidIdle(int uid, boolean disabled) {
+                    mAccessCache.invalidateUid(uid);
+                    invalidateListenerAccessForUid(uid);
+                }
+
+                @Override
+                public void onUidCachedChanged(int uid, boolean cached) {
+                }
+            }, ActivityManager.UID_OBSERVER_PROCSTATE | ActivityManager.UID_OBSERVER_GONE
+                    | ActivityManager.UID_OBSERVER_ACTIVE | ActivityManager.UID_OBSERVER_IDLE,
+                    ActivityManager.PROCESS_STATE_IMPORTANT_FOREGROUND, null);
+        } catch (RemoteException e) {
+            // Can't happen; the activity manager is in the same process
+        }
+    }
+
+    private void invalidateListenerAccess(String packageName) {
+        mDispatchHandler.sendMessage(mDispatchHandler.obtainMessage(
+                DispatchHandler.MSG_INVALIDATE_PACKAGE_ACCESS, packageName));
+    }
+
+    private void invalidateListenerAccessForUid(int uid) {
+        mDispatchHandler.sendMessage(mDispatchHandler.obtainMessage(
+                DispatchHandler.MSG_INVALIDATE_UID_ACCESS, uid, 0));
+    }
+
+    /**
+     * Forgets the cached read access of the listeners registered by {@code packageName}, or
+     * by {@code uid} when packageName is null, or of every listener when neither is given.
+     * Runs on the dispatcher thread, so it is ordered against the broadcasts of clip changes
+     * made after the event that triggered it. Being the only caller of beginBroadcast(), the
+     * dispatcher also gets a stable view of each list while binder threads register and
+     * unregister listeners.
+     */
+    private void resetListenerAccess(String packageName, int uid) {
+        final ArrayList<PerUserClipboard> clipboards = getClipboards();
+        for (int i = clipboards.size() - 1; i >= 0; i--) {
+            final RemoteCallbackList<IOnPrimaryClipChangedListener> listeners =
+                    clipboards.get(i).primaryClipListeners;
+            final int n = listeners.beginBroadcast();
+            try {
+                for (int j = 0; j < n; j++) {
+                    final ListenerInfo li = (ListenerInfo) listeners.getBroadcastCookie(j);
+                    if (packageName != null ? packageName.equals(li.mPackageName)
+                            : uid == Process.INVALID_UID || uid == li.mUid) {
+                        li.mReadAccess = ListenerInfo.ACCESS_UNKNOWN;
+                    }
+                }
+            } finally {
+                listeners.finishBroadcast();
+            }
+        }
+    }
+
     @Override
     public void onCleanupUser(int userId) {
+        final long waitStart = ClipboardMetrics.start();
         synchronized (mClipboards) {
+            final long holdStart = mMetrics.lockAcquired(ClipboardMetrics.LOCK_CLIPBOARDS_MAP,
+                    waitStart);
             mClipboards.remove(userId);
+            mClipboardsSnapshot = mClipboards.clone();
+            mMetrics.lockReleased(ClipboardMetrics.LOCK_CLIPBOARDS_MAP, holdStart);
+        }
+    }
+
+    /**
+     * Users sharing clipboard content with a user, and whether the user may copy to them.
+     */
+    private static final class ProfileGroup {
+        // Sorted, always contains the user the group was loaded for.
+        final int[] userIds;
+        final boolean canCopy;
+
+        ProfileGroup(int[] userIds, boolean canCopy) {
+            this.userIds = userIds;
+            this.canCopy = canCopy;
+        }
+    }
+
+    /**
+     * A URI without its user id, paired with the user it belongs to, as expected by the
+     * activity manager's URI permission calls.
+     */
+    private static final class UserUri {
+        final Uri uri;
+        final int userId;
+
+        private UserUri(Uri uri, int userId) {
+            this.uri = uri;
+            this.userId = userId;
+        }
+
+        static UserUri of(Uri uri, int defaultUserId) {
+            return new UserUri(ContentProvider.getUriWithoutUserId(uri),
+                    ContentProvider.getUserIdFromUri(uri, defaultUserId));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof UserUri)) {
+                return false;
+            }
+            final UserUri other = (UserUri) o;
+            return userId == other.userId && uri.equals(other.uri);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * uri.hashCode() + userId;
+        }
+    }
+
+    /**
+     * Counts URIs found in clips against the URI permission calls actually made for them.
+     */
+    private static final class UriPermissionStats {
+        private long mItemsScanned;
+        private long mDistinctUris;
+        private long mGrantCalls;
+        private long mRevokeCalls;
+
+        synchronized void seen(int items, int distinctUris) {
+            mItemsScanned += items;
+            mDistinctUris += distinctUris;
+        }
+
+        synchronized void grants(int calls) {
+            mGrantCalls += calls;
+        }
+
+        synchronized void revokes(int calls) {
+            mRevokeCalls += calls;
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println("  URI permissions:");
+            pw.println("    items scanned=" + mItemsScanned + " distinct uris=" + mDistinctUris
+                    + " grant calls=" + mGrantCalls + " revoke calls=" + mRevokeCalls);
+        }
+    }
+
+    private final class DispatchHandler extends Handler {
+        static final int MSG_PRIMARY_CLIP_CHANGED = 1;
+        // obj is the package name, or null for every package.
+        static final int MSG_INVALIDATE_PACKAGE_ACCESS = 2;
+        // arg1 is the uid.
+        static final int MSG_INVALIDATE_UID_ACCESS = 3;
+
+        DispatchHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_PRIMARY_CLIP_CHANGED:
+                    dispatchPrimaryClipChanged((PerUserClipboard) msg.obj);
+                    break;
+                case MSG_INVALIDATE_PACKAGE_ACCESS:
+                    resetListenerAccess((String) msg.obj, Process.INVALID_UID);
+                    break;
+                case MSG_INVALIDATE_UID_ACCESS:
+                    resetListenerAccess(null, msg.arg1);
+                    break;
+            }
         }
     }
 
     private class ListenerInfo {
+        static final int ACCESS_UNKNOWN = 0;
+        static final int ACCESS_ALLOWED = 1;
+        static final int ACCESS_DENIED = 2;
+
         final int mUid;
         final String mPackageName;
+        // Whether the listener may read the clipboard, reset to ACCESS_UNKNOWN when an event
+        // could change the answer. Only used on the dispatcher thread.
+        int mReadAccess = ACCESS_UNKNOWN;
+
         ListenerInfo(int uid, String packageName) {
             mUid = uid;
             mPackageName = packageName;
         }
     }
 
+    /**
+     * Bounded LRU cache of {@link #clipboardAccessAllowed} decisions keyed by
+     * (op, uid, package). Every invalidation bumps a generation so that a decision computed
+     * concurrently with it is not stored.
+     */
+    private final class AccessDecisionCache {
+        private static final int MAX_ENTRIES = 512;
+
+        private final LinkedHashMap<AccessKey, Boolean> mDecisions =
+                new LinkedHashMap<AccessKey, Boolean>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<AccessKey, Boolean> eldest) {
+                        return size() > MAX_ENTRIES;
+                    }
+                };
+        private long mGeneration;
+        private long mHits;
+        private long mMisses;
+        private long mInvalidations;
+
+        boolean isAllowed(int op, String callingPackage, int callingUid) {
+            return Boolean.TRUE.equals(getDecision(op, callingPackage, callingUid));
+        }
+
+        /**
+         * Returns whether access is allowed, or null when it could not be determined because
+         * the package or activity manager could not be reached. Failures are not cached.
+         */
+        Boolean getDecision(int op, String callingPackage, int callingUid) {
+            final AccessKey key = new AccessKey(op, callingUid, callingPackage);
+            final long generation;
+            synchronized (this) {
+                final Boolean cached = mDecisions.get(key);
+                if (cached != null) {
+                    mHits++;
+                    return cached;
+                }
+                mMisses++;
+                generation = mGeneration;
+            }
+            final boolean allowed;
+            try {
+                allowed = checkClipboardAccess(op, callingPackage, callingUid);
+            } catch (RemoteException e) {
+                Slog.e("clipboard", "Failed to get Instant App status for package "
+                        + callingPackage, e);
+                return null;
+            }
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mDecisions.put(key, allowed);
+                }
+            }
+            return allowed;
+        }
+
+        synchronized void invalidatePackage(String packageName) {
+            mGeneration++;
+            mInvalidations++;
+            if (packageName == null) {
+                mDecisions.clear();
+                return;
+            }
+            final Iterator<AccessKey> it = mDecisions.keySet().iterator();
+            while (it.hasNext()) {
+                if (packageName.equals(it.next().packageName)) {
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void invalidateUid(int uid) {
+            mGeneration++;
+            mInvalidations++;
+            final Iterator<AccessKey> it = mDecisions.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().uid == uid) {
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println("  Access decision cache:");
+            pw.println("    size=" + mDecisions.size() + " max=" + MAX_ENTRIES);
+            pw.println("    hits=" + mHits + " misses=" + mMisses
+                    + " invalidations=" + mInvalidations);
+        }
+    }
+
+    private static final class AccessKey {
+        final int op;
+        final int uid;
+        final String packageName;
+
+        AccessKey(int op, int uid, String packageName) {
+            this.op = op;
+            this.uid = uid;
+            this.packageName = packageName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof AccessKey)) {
+                return false;
+            }
+            final AccessKey other = (AccessKey) o;
+            return op == other.op && uid == other.uid
+                    && (packageName == null
+                            ? other.packageName == null : packageName.equals(other.packageName));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 31 * op + uid;
+            return 31 * result + (packageName != null ? packageName.hashCode() : 0);
+        }
+    }
+
+    /**
+     * Bounded LRU set of (uid, package, user) triples for which {@link #checkPackageOwner}
+     * succeeded. Only successes are remembered, a failed check always goes back to the
+     * package manager. Any package change bumps the generation so that a lookup racing
+     * with it is not recorded.
+     */
+    private static final class PackageOwnershipCache {
+        private static final int MAX_ENTRIES = 256;
+
+        private final LinkedHashMap<OwnerKey, Boolean> mVerified =
+                new LinkedHashMap<OwnerKey, Boolean>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<OwnerKey, Boolean> eldest) {
+                        return size() > MAX_ENTRIES;
+                    }
+                };
+        private long mGeneration;
+        private long mHits;
+        private long mMisses;
+        private long mInvalidations;
+
+        synchronized long getGeneration() {
+            return mGeneration;
+        }
+
+        synchronized boolean isVerified(OwnerKey key) {
+            if (mVerified.get(key) != null) {
+                mHits++;
+                return true;
+            }
+            mMisses++;
+            return false;
+        }
+
+        synchronized void markVerified(OwnerKey key, long generation) {
+            if (generation == mGeneration) {
+                mVerified.put(key, Boolean.TRUE);
+            }
+        }
+
+        synchronized void invalidatePackage(String packageName) {
+            mGeneration++;
+            mInvalidations++;
+            final Iterator<OwnerKey> it = mVerified.keySet().iterator();
+            while (it.hasNext()) {
+                if (packageName.equals(it.next().packageName)) {
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println("  Package ownership cache:");
+            pw.println("    size=" + mVerified.size() + " max=" + MAX_ENTRIES);
+            pw.println("    hits=" + mHits + " misses=" + mMisses
+                    + " invalidations=" + mInvalidations);
+        }
+    }
+
+    private static final class OwnerKey {
+        final int uid;
+        final String packageName;
+        final int userId;
+
+        OwnerKey(int uid, String packageName, int userId) {
+            this.uid = uid;
+            this.packageName = packageName;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof OwnerKey)) {
+                return false;
+            }
+            final OwnerKey other = (OwnerKey) o;
+            return uid == other.uid && userId == other.userId
+                    && Objects.equals(packageName, other.packageName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 31 * uid + userId;
+            return 31 * result + (packageName != null ? packageName.hashCode() : 0);
+        }
+    }
+
+    /**
+     * What probes need to know about a clip, computed once when it is set so that they never
+     * look at item payloads.
+     */
+    private static final class ClipMetadata {
+        final long version;
+        // Null when the clipboard is empty.
+        final ClipDescription description;
+        final String[] mimeTypes;
+        final int itemCount;
+        // Whether the first item has non-empty text.
+        final boolean hasText;
+        // Whether an item has a URI that is granted to readers.
+        final boolean hasUris;
+        // Whether an item has an intent, whose ClipData and extras may hold more URIs.
+        final boolean hasIntents;
+        // Approximate size of the clip payload, in bytes.
+        final long byteSize;
+        // Wall clock time the clip was set at, and elapsed realtime the metadata was built at.
+        final long timestamp;
+        final long elapsedRealtime;
+
+        ClipMetadata(ClipData clip, long version) {
+            this.version = version;
+            elapsedRealtime = SystemClock.elapsedRealtime();
+            if (clip == null) {
+                description = null;
+                mimeTypes = new String[0];
+                itemCount = 0;
+                hasText = false;
+                hasUris = false;
+                hasIntents = false;
+                byteSize = 0;
+                timestamp = 0;
+                return;
+            }
+            description = clip.getDescription();
+            final int mimeTypeCount = description != null ? description.getMimeTypeCount() : 0;
+            mimeTypes = new String[mimeTypeCount];
+            for (int i = 0; i < mimeTypeCount; i++) {
+                mimeTypes[i] = description.getMimeType(i);
+            }
+            timestamp = description != null ? description.getTimestamp() : 0;
+            itemCount = clip.getItemCount();
+            final CharSequence text = itemCount > 0 ? clip.getItemAt(0).getText() : null;
+            hasText = text != null && text.length() > 0;
+            boolean uris = false;
+            boolean intents = false;
+            long chars = 0;
+            for (int i = itemCount - 1; i >= 0; i--) {
+                final ClipData.Item item = clip.getItemAt(i);
+                uris |= item.getUri() != null
+                        || (item.getIntent() != null && item.getIntent().getData() != null);
+                intents |= item.getIntent() != null;
+                chars += item.getText() != null ? item.getText().length() : 0;
+                chars += item.getHtmlText() != null ? item.getHtmlText().length() : 0;
+                chars += item.getUri() != null ? item.getUri().toString().length() : 0;
+            }
+            hasUris = uris;
+            hasIntents = intents;
+            byteSize = chars * 2;
+        }
+    }
+
+    /**
+     * Immutable view of a user's primary clip together with the values the read-only
+     * binder calls need, computed once when the clip is set.
+     */
+    private static final class ClipSnapshot {
+        static final ClipSnapshot EMPTY = new ClipSnapshot(null, 0, Process.INVALID_UID,
+                UserHandle.USER_NULL, UserHandle.USER_NULL, 0);
+
+        // Shared by every member of the profile group the clip was copied to; never
+        // modified after it is published. Use getClip() for the content of this user.
+        final ClipData clip;
+        // User owning this snapshot and user the clip was originally set by.
+        final int userId;
+        final int sourceUserId;
+        final ClipMetadata metadata;
+        final int writerUid;
+        // fingerprint() of the clip, only computed for clips written by an app since the
+        // others are never compared.
+        final long fingerprint;
+
+        // Copy of clip with URIs pointing at sourceUserId, built on first use.
+        private volatile ClipData mUserView;
+
+        ClipSnapshot(ClipData clip, long version, int writerUid, int userId, int sourceUserId,
+                long fingerprint) {
+            this.clip = clip;
+            this.writerUid = writerUid;
+            this.userId = userId;
+            this.sourceUserId = sourceUserId;
+            this.fingerprint = fingerprint;
+            metadata = new ClipMetadata(clip, version);
+        }
+
+        /**
+         * Returns whether the clip was set in another user and needs its URIs rewritten to
+         * point at that user before being handed out here. Intents always qualify since
+         * their ClipData and stream extras are rewritten as well.
+         */
+        boolean needsUserView() {
+            return clip != null && (metadata.hasUris || metadata.hasIntents)
+                    && userId != sourceUserId;
+        }
+
+        /**
+         * Returns the clip as seen by {@link #userId}. Content URIs of a clip copied from a
+         * related profile get the source user id added; everything else, including the
+         * text of every item, is shared with the source user's clip.
+         */
+        ClipData getClip() {
+            if (!needsUserView()) {
+                return clip;
+            }
+            ClipData view = mUserView;
+            if (view == null) {
+                view = new ClipData(clip);
+                for (int i = view.getItemCount() - 1; i >= 0; i--) {
+                    final ClipData.Item item = view.getItemAt(i);
+                    // fixUrisLight() modifies the intent, don't let it touch the shared one.
+                    final Intent intent = item.getIntent() != null
+                            ? new Intent(item.getIntent()) : null;
+                    view.setItemAt(i, new ClipData.Item(item.getText(), item.getHtmlText(),
+                            intent, item.getUri()));
+                }
+                view.fixUrisLight(sourceUserId);
+                // Racing readers build equal views, keeping either one is fine.
+                mUserView = view;
+            }
+            return view;
+        }
+
+        boolean isUserViewMaterialized() {
+            return mUserView != null;
+        }
+
+        /**
+         * Returns whether {@code other}, written by {@code uid} and fingerprinted as
+         * {@code otherFingerprint}, has exactly the content of this snapshot and was written
+         * by the same app. The fingerprint rejects most mismatches cheaply, a full
+         * comparison guards against collisions.
+         */
+        boolean isSameWrite(ClipData other, int uid, long otherFingerprint) {
+            if (clip == null || other == null || writerUid == Process.INVALID_UID
+                    || writerUid != uid) {
+                return false;
+            }
+            return fingerprint == otherFingerprint && contentEquals(clip, other);
+        }
+
+        private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+        private static final long FNV_PRIME = 0x100000001b3L;
+
+        private static long mix(long hash, CharSequence value) {
+            if (value == null) {
+                return (hash ^ 0xff) * FNV_PRIME;
+            }
+            for (int i = 0, n = value.length(); i < n; i++) {
+                hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+            }
+            // Separator, so that ("ab", "c") and ("a", "bc") differ.
+            return (hash ^ 0xfe) * FNV_PRIME;
+        }
+
+        /**
+         * 64-bit FNV-1a hash over the label, MIME types and, for every item, its text, HTML
+         * text, URI and intent.
+         */
+        static long fingerprint(ClipData clip) {
+            long hash = FNV_OFFSET;
+            final ClipDescription description = clip.getDescription();
+            if (description != null) {
+                hash = mix(hash, description.getLabel());
+                for (int i = 0, n = description.getMimeTypeCount(); i < n; i++) {
+                    hash = mix(hash, description.getMimeType(i));
+                }
+            }
+            for (int i = 0, n = clip.getItemCount(); i < n; i++) {
+                final ClipData.Item item = clip.getItemAt(i);
+                hash = mix(hash, item.getText());
+                hash = mix(hash, item.getHtmlText());
+                hash = mix(hash, item.getUri() != null ? item.getUri().toString() : null);
+                hash = mix(hash, item.getIntent() != null ? item.getIntent().toUri(0) : null);
+            }
+            return hash;
+        }
+
+        private static boolean contentEquals(ClipData a, ClipData b) {
+            final ClipDescription da = a.getDescription();
+            final ClipDescription db = b.getDescription();
+            if ((da == null) != (db == null)) {
+                return false;
+            }
+            if (da != null) {
+                if (!TextUtils.equals(da.getLabel(), db.getLabel())
+                        || da.getMimeTypeCount() != db.getMimeTypeCount()) {
+                    return false;
+                }
+                for (int i = da.getMimeTypeCount() - 1; i >= 0; i--) {
+                    if (!TextUtils.equals(da.getMimeType(i), db.getMimeType(i))) {
+                        return false;
+                    }
+                }
+            }
+            if (a.getItemCount() != b.getItemCount()) {
+                return false;
+            }
+            for (int i = a.getItemCount() - 1; i >= 0; i--) {
+                final ClipData.Item ia = a.getItemAt(i);
+                final ClipData.Item ib = b.getItemAt(i);
+                // Styled text may differ only in its spans, which are not compared.
+                if (ia.getText() instanceof Spanned || ib.getText() instanceof Spanned
+                        || !TextUtils.equals(ia.getText(), ib.getText())
+                        || !TextUtils.equals(ia.getHtmlText(), ib.getHtmlText())
+                        || !Objects.equals(ia.getUri(), ib.getUri())
+                        || !Objects.equals(ia.getIntent() != null ? ia.getIntent().toUri(0) : null,
+                                ib.getIntent() != null ? ib.getIntent().toUri(0) : null)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Most recent clips of a user, newest first, bounded by entry count, total payload
+     * bytes and age. Entries are the published snapshots themselves, so the history never
+     * copies clip content. The array is replaced, never mutated, so reading the history
+     * takes no lock and never delays a write; adding copies at most maxEntries references.
+     */
+    private static final class ClipHistory {
+        private static final ClipSnapshot[] EMPTY = new ClipSnapshot[0];
+
+        private final int mMaxEntries;
+        private final long mMaxBytes;
+        private final long mMaxAgeMs;
+        private volatile ClipSnapshot[] mEntries = EMPTY;
+        // Written under the owning clipboard's lock.
+        private long mBytes;
+        private long mEvictions;
+
+        ClipHistory(int maxEntries, long maxBytes, long maxAgeMs) {
+            mMaxEntries = maxEntries;
+            mMaxBytes = maxBytes;
+            mMaxAgeMs = maxAgeMs;
+        }
+
+        /**
+         * Adds {@code snapshot} as the newest entry, evicting the oldest entries that no
+         * longer fit. Caller must hold the owning clipboard's lock.
+         */
+        void add(ClipSnapshot snapshot) {
+            if (mMaxEntries <= 0) {
+                return;
+            }
+            final ClipSnapshot[] old = mEntries;
+            long bytes = snapshot.metadata.byteSize;
+            int keep = 0;
+            while (keep < old.length && keep + 1 < mMaxEntries) {
+                final ClipMetadata entry = old[keep].metadata;
+                if (snapshot.metadata.elapsedRealtime - entry.elapsedRealtime > mMaxAgeMs
+                        || bytes + entry.byteSize > mMaxBytes) {
+                    break;
+                }
+                bytes += entry.byteSize;
+                keep++;
+            }
+            final ClipSnapshot[] entries = new ClipSnapshot[keep + 1];
+            entries[0] = snapshot;
+            System.arraycopy(old, 0, entries, 1, keep);
+            mEvictions += old.length - keep;
+            mBytes = bytes;
+            mEntries = entries;
+        }
+
+        /**
+         * Drops every entry, for instance when the primary clip is cleared. Caller must hold
+         * the owning clipboard's lock.
+         */
+        void clear() {
+            mEntries = EMPTY;
+            mBytes = 0;
+        }
+
+        /**
+         * Drops the entries shared from the related profile {@code sourceUserId}. Caller must
+         * hold the owning clipboard's lock.
+         */
+        void removeSharedFrom(int sourceUserId) {
+            final ClipSnapshot[] old = mEntries;
+            final ArrayList<ClipSnapshot> kept = new ArrayList<>(old.length);
+            long bytes = 0;
+            for (ClipSnapshot entry : old) {
+                if (entry.sourceUserId == sourceUserId && entry.userId != sourceUserId) {
+                    continue;
+                }
+                kept.add(entry);
+                bytes += entry.metadata.byteSize;
+            }
+            if (kept.size() != old.length) {
+                mBytes = bytes;
+                mEntries = kept.toArray(EMPTY);
+            }
+        }
+
+        /**
+         * Returns every entry, newest first, including those that have aged out but were not
+         * evicted yet. The array must not be modified.
+         */
+        ClipSnapshot[] getEntries() {
+            return mEntries;
+        }
+
+        /**
+         * Returns the clips that have not aged out, newest first. They are the live clips,
+         * shared with the clipboards, and must be treated as read-only.
+         */
+        List<ClipData> getClips() {
+            final ClipSnapshot[] entries = mEntries;
+            final long now = SystemClock.elapsedRealtime();
+            final ArrayList<ClipData> clips = new ArrayList<>(entries.length);
+            for (ClipSnapshot entry : entries) {
+                if (now - entry.metadata.elapsedRealtime > mMaxAgeMs) {
+                    break;
+                }
+                clips.add(entry.getClip());
+            }
+            return clips;
+        }
+
+        void dump(PrintWriter pw) {
+            pw.print(" history=" + mEntries.length + " historyBytes=" + mBytes
+                    + " historyEvictions=" + mEvictions);
+        }
+    }
+
+    /**
+     * Clipboard state of a single user. The object itself is the lock guarding its
+     * mutable fields, so traffic for unrelated users never contends. Writers that touch a
+     * whole profile group take the locks of all its members in ascending user id order.
+     */
     private class PerUserClipboard {
         final int userId;
 
         final RemoteCallbackList<IOnPrimaryClipChangedListener> primaryClipListeners
                 = new RemoteCallbackList<IOnPrimaryClipChangedListener>();
 
-        ClipData primaryClip;
+        // Replaced, never mutated, under the clipboard lock. Readers that only need
+        // a consistent view of the clip load it once and take no lock.
+        volatile ClipSnapshot primaryClip = ClipSnapshot.EMPTY;
+
+        // Package -> URIs of the primary clip it has actually been granted.
+        final ArrayMap<String, ArraySet<UserUri>> activePermissionOwners
+                = new ArrayMap<String, ArraySet<UserUri>>();
+
+        final ClipHistory history = new ClipHistory(mHistoryMaxEntries, mHistoryMaxBytes,
+                mHistoryMaxAgeMs);
 
-        final HashSet<String> activePermissionOwners
-                = new HashSet<String>();
+        // Bytes of the primary clip's text held in ashmem rather than on the heap.
+        long spilledBytes;
+        // Chars of items over the spill threshold that stayed on the heap, because spilling
+        // them would exceed the budget or failed.
+        long overBudgetChars;
+
+        // When the change behind the queued listener notification was published. Written
+        // under the clipboard lock before posting, read on the dispatcher thread.
+        volatile long notifyPendingSinceNanos;
 
         PerUserClipboard(int userId) {
             this.userId = userId;
@@ -244,183 +1573,802 @@ public class ClipboardService extends SystemService {
 
         @Override
         public void setPrimaryClip(ClipData clip, String callingPackage) {
-            synchronized (this) {
+            final long start = ClipboardMetrics.start();
+            try {
                 if (clip != null && clip.getItemCount() <= 0) {
                     throw new IllegalArgumentException("No items");
                 }
-                if (clip.getItemAt(0).getText() != null &&
-                    mHostClipboardMonitor != null) {
-                    mHostClipboardMonitor.setHostClipboard(
-                        clip.getItemAt(0).getText().toString());
-                }
-                final int callingUid = Binder.getCallingUid();
+                final int callingUid = mInjector.getCallingUid();
                 if (!clipboardAccessAllowed(AppOpsManager.OP_WRITE_CLIPBOARD, callingPackage,
                             callingUid)) {
                     return;
                 }
-                checkDataOwnerLocked(clip, callingUid);
                 final int userId = UserHandle.getUserId(callingUid);
-                PerUserClipboard clipboard = getClipboard(userId);
-                revokeUris(clipboard);
-                setPrimaryClipInternal(clipboard, clip);
-                List<UserInfo> related = getRelatedProfiles(userId);
-                if (related != null) {
-                    int size = related.size();
-                    if (size > 1) { // Related profiles list include the current profile.
-                        boolean canCopy = false;
-                        try {
-                            canCopy = !mUm.getUserRestrictions(userId).getBoolean(
-                                    UserManager.DISALLOW_CROSS_PROFILE_COPY_PASTE);
-                        } catch (RemoteException e) {
-                            Slog.e(TAG, "Remote Exception calling UserManager: " + e);
-                        }
-                        // Copy clip data to related users if allowed. If disallowed, then remove
-                        // primary clip in related users to prevent pasting stale content.
-                        if (!canCopy) {
-                            clip = null;
-                        } else {
-                            // We want to fix the uris of the related user's clip without changing the
-                            // uris of the current user's clip.
-                            // So, copy the ClipData, and then copy all the items, so that nothing
-                            // is shared in memmory.
-                            clip = new ClipData(clip);
-                            for (int i = clip.getItemCount() - 1; i >= 0; i--) {
-                                clip.setItemAt(i, new ClipData.Item(clip.getItemAt(i)));
-                            }
-                            clip.fixUrisLight(userId);
-                        }
-                        for (int i = 0; i < size; i++) {
-                            int id = related.get(i).id;
-                            if (id != userId) {
-                                setPrimaryClipInternal(getClipboard(id), clip);
-                            }
-                        }
-                    }
+                // Hash the clip once, with no lock held. The same value is kept by the new
+                // snapshot for the next write to compare against.
+                final long fingerprint = clip != null ? ClipSnapshot.fingerprint(clip) : 0;
+                if (getClipboard(userId).primaryClip.isSameWrite(clip, callingUid,
+                        fingerprint)) {
+                    // Re-setting the current clip changes nothing anyone can observe, so skip
+                    // the host push, URI revocation, listener broadcast and profile copies.
+                    mSkippedDuplicateWrites.incrementAndGet();
+                    return;
+                }
+                if (clip.getItemAt(0).getText() != null &&
+                    mHostClipboardMonitor != null) {
+                    mHostClipboardMonitor.setHostClipboard(
+                        clip.getItemAt(0).getText().toString());
                 }
+                // Spill large text and resolve the profile group before taking any clipboard
+                // lock, so that neither the file I/O nor a cache miss, which costs UserManager
+                // IPCs, delays other callers of this group.
+                spillLargeItems(getClipboard(userId), clip);
+                final ProfileGroup group = getProfileGroup(userId);
+                final PerUserClipboard[] clipboards = getProfileGroupClipboards(group);
+                runWithClipboardsLocked(clipboards, 0, () -> {
+                    checkDataOwnerLocked(clip, callingUid);
+                    setPrimaryClipLocked(clip, callingUid, fingerprint, clipboards,
+                            group.canCopy);
+                });
+            } finally {
+                mMetrics.end(ClipboardMetrics.SET_PRIMARY_CLIP, start);
             }
         }
 
         @Override
         public ClipData getPrimaryClip(String pkg) {
-            synchronized (this) {
-                if (!clipboardAccessAllowed(AppOpsManager.OP_READ_CLIPBOARD, pkg,
-                            Binder.getCallingUid())) {
+            final long start = ClipboardMetrics.start();
+            try {
+                final int callingUid = mInjector.getCallingUid();
+                if (!clipboardAccessAllowed(AppOpsManager.OP_READ_CLIPBOARD, pkg, callingUid)) {
                     return null;
                 }
-                addActiveOwnerLocked(Binder.getCallingUid(), pkg);
-                return getClipboard().primaryClip;
+                checkPackageOwner(callingUid, pkg);
+                PerUserClipboard clipboard = getClipboard();
+                ClipSnapshot snapshot = clipboard.primaryClip;
+                if (!snapshot.metadata.hasUris) {
+                    // Nothing to grant, the snapshot can be handed out without locking.
+                    // getClip() still rewrites URIs nested in intents from a related profile.
+                    return snapshot.getClip();
+                }
+                final long waitStart = ClipboardMetrics.start();
+                synchronized (clipboard) {
+                    final long holdStart = mMetrics.lockAcquired(
+                            ClipboardMetrics.LOCK_CLIPBOARD, waitStart);
+                    try {
+                        addActiveOwnerLocked(clipboard, callingUid, pkg);
+                        return clipboard.primaryClip.getClip();
+                    } finally {
+                        mMetrics.lockReleased(ClipboardMetrics.LOCK_CLIPBOARD, holdStart);
+                    }
+                }
+            } finally {
+                mMetrics.end(ClipboardMetrics.GET_PRIMARY_CLIP, start);
             }
         }
 
         @Override
         public ClipDescription getPrimaryClipDescription(String callingPackage) {
-            synchronized (this) {
+            final long start = ClipboardMetrics.start();
+            try {
                 if (!clipboardAccessAllowed(AppOpsManager.OP_READ_CLIPBOARD, callingPackage,
-                            Binder.getCallingUid())) {
+                            mInjector.getCallingUid())) {
                     return null;
                 }
-                PerUserClipboard clipboard = getClipboard();
-                return clipboard.primaryClip != null ? clipboard.primaryClip.getDescription() : null;
+                return getClipboard().primaryClip.metadata.description;
+            } finally {
+                mMetrics.end(ClipboardMetrics.GET_PRIMARY_CLIP_DESCRIPTION, start);
             }
         }
 
         @Override
         public boolean hasPrimaryClip(String callingPackage) {
-            synchronized (this) {
+            final long start = ClipboardMetrics.start();
+            try {
                 if (!clipboardAccessAllowed(AppOpsManager.OP_READ_CLIPBOARD, callingPackage,
-                            Binder.getCallingUid())) {
+                            mInjector.getCallingUid())) {
                     return false;
                 }
-                return getClipboard().primaryClip != null;
+                return getClipboard().primaryClip.metadata.itemCount > 0;
+            } finally {
+                mMetrics.end(ClipboardMetrics.HAS_PRIMARY_CLIP, start);
             }
         }
 
         @Override
         public void addPrimaryClipChangedListener(IOnPrimaryClipChangedListener listener,
                 String callingPackage) {
-            synchronized (this) {
+            final long start = ClipboardMetrics.start();
+            try {
+                // RemoteCallbackList does its own locking, no clipboard lock is needed here.
                 getClipboard().primaryClipListeners.register(listener,
-                        new ListenerInfo(Binder.getCallingUid(), callingPackage));
+                        new ListenerInfo(mInjector.getCallingUid(), callingPackage));
+            } finally {
+                mMetrics.end(ClipboardMetrics.ADD_LISTENER, start);
             }
         }
 
         @Override
         public void removePrimaryClipChangedListener(IOnPrimaryClipChangedListener listener) {
-            synchronized (this) {
+            final long start = ClipboardMetrics.start();
+            try {
                 getClipboard().primaryClipListeners.unregister(listener);
+            } finally {
+                mMetrics.end(ClipboardMetrics.REMOVE_LISTENER, start);
             }
         }
 
         @Override
         public boolean hasClipboardText(String callingPackage) {
-            synchronized (this) {
+            final long start = ClipboardMetrics.start();
+            try {
                 if (!clipboardAccessAllowed(AppOpsManager.OP_READ_CLIPBOARD, callingPackage,
-                            Binder.getCallingUid())) {
+                            mInjector.getCallingUid())) {
                     return false;
                 }
-                PerUserClipboard clipboard = getClipboard();
-                if (clipboard.primaryClip != null) {
-                    CharSequence text = clipboard.primaryClip.getItemAt(0).getText();
-                    return text != null && text.length() > 0;
+                return getClipboard().primaryClip.metadata.hasText;
+            } finally {
+                mMetrics.end(ClipboardMetrics.HAS_CLIPBOARD_TEXT, start);
+            }
+        }
+
+        /**
+         * Returns the read side of a pipe carrying the UTF-8 text of the primary clip's first
+         * item, so that large clips can be read in chunks instead of in one transaction.
+         * Returns null when there is no such text or it is small enough for
+         * {@link #getPrimaryClip}, which callers should use instead. Performs the same access
+         * checks and URI grants as {@link #getPrimaryClip}. Becomes reachable over binder
+         * once IClipboard.aidl declares it.
+         */
+        public ParcelFileDescriptor openPrimaryClipText(String pkg) {
+            final long start = ClipboardMetrics.start();
+            try {
+                final int callingUid = mInjector.getCallingUid();
+                if (!clipboardAccessAllowed(AppOpsManager.OP_READ_CLIPBOARD, pkg, callingUid)) {
+                    return null;
                 }
-                return false;
+                checkPackageOwner(callingUid, pkg);
+                final PerUserClipboard clipboard = getClipboard();
+                final ClipSnapshot snapshot = clipboard.primaryClip;
+                final CharSequence text = snapshot.metadata.hasText
+                        ? snapshot.clip.getItemAt(0).getText() : null;
+                if (text == null || text.length() < STREAM_MIN_CHARS) {
+                    return null;
+                }
+                if (snapshot.metadata.hasUris) {
+                    final long waitStart = ClipboardMetrics.start();
+                    synchronized (clipboard) {
+                        final long holdStart = mMetrics.lockAcquired(
+                                ClipboardMetrics.LOCK_CLIPBOARD, waitStart);
+                        try {
+                            if (clipboard.primaryClip != snapshot) {
+                                // Replaced meanwhile; the caller retries and reads the new clip.
+                                return null;
+                            }
+                            addActiveOwnerLocked(clipboard, callingUid, pkg);
+                        } finally {
+                            mMetrics.lockReleased(ClipboardMetrics.LOCK_CLIPBOARD, holdStart);
+                        }
+                    }
+                }
+                final ParcelFileDescriptor[] pipe;
+                try {
+                    pipe = ParcelFileDescriptor.createPipe();
+                } catch (IOException e) {
+                    Slog.w(TAG, "Unable to create clip stream", e);
+                    return null;
+                }
+                try {
+                    mStreamExecutor.execute(() -> writeTextToPipe(text, pipe[1]));
+                } catch (RejectedExecutionException e) {
+                    Slog.w(TAG, "Too many clip streams open, not streaming for " + pkg);
+                    IoUtils.closeQuietly(pipe[0]);
+                    IoUtils.closeQuietly(pipe[1]);
+                    return null;
+                }
+                return pipe[0];
+            } finally {
+                mMetrics.end(ClipboardMetrics.OPEN_PRIMARY_CLIP_TEXT, start);
+            }
+        }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            if (!DumpUtils.checkDumpPermission(getContext(), TAG, pw)) return;
+            pw.println("CLIPBOARD SERVICE (dumpsys clipboard)");
+            mAccessCache.dump(pw);
+            mOwnershipCache.dump(pw);
+            pw.println("  Listener notifications:");
+            pw.println("    coalesceWindowMs=" + mNotifyCoalesceWindowMs
+                    + " dispatched=" + mDispatchedNotifications.get()
+                    + " suppressed=" + mSuppressedNotifications.get()
+                    + " accessChecks=" + mListenerAccessChecks.get());
+            pw.println("  Skipped duplicate writes: " + mSkippedDuplicateWrites.get());
+            dumpSharedClips(pw);
+            mUriPermissionStats.dump(pw);
+            if (mJournal != null) {
+                mJournal.dump(pw);
             }
+            if (mHostClipboardMonitor != null) {
+                mHostClipboardMonitor.dump(pw);
+            }
+            mMetrics.dump(pw);
         }
     };
 
     private PerUserClipboard getClipboard() {
-        return getClipboard(UserHandle.getCallingUserId());
+        return getClipboard(UserHandle.getUserId(mInjector.getCallingUid()));
+    }
+
+    /**
+     * Returns every clipboard created so far, copied under the map lock so that callers can
+     * visit them without holding it.
+     */
+    private ArrayList<PerUserClipboard> getClipboards() {
+        final long waitStart = ClipboardMetrics.start();
+        synchronized (mClipboards) {
+            final long holdStart = mMetrics.lockAcquired(ClipboardMetrics.LOCK_CLIPBOARDS_MAP,
+                    waitStart);
+            try {
+                final ArrayList<PerUserClipboard> clipboards =
+                        new ArrayList<>(mClipboards.size());
+                for (int i = 0; i < mClipboards.size(); i++) {
+                    clipboards.add(mClipboards.valueAt(i));
+                }
+                return clipboards;
+            } finally {
+                mMetrics.lockReleased(ClipboardMetrics.LOCK_CLIPBOARDS_MAP, holdStart);
+            }
+        }
     }
 
     private PerUserClipboard getClipboard(int userId) {
+        PerUserClipboard puc = mClipboardsSnapshot.get(userId);
+        if (puc != null) {
+            return puc;
+        }
+        final long waitStart = ClipboardMetrics.start();
         synchronized (mClipboards) {
-            PerUserClipboard puc = mClipboards.get(userId);
+            final long holdStart = mMetrics.lockAcquired(ClipboardMetrics.LOCK_CLIPBOARDS_MAP,
+                    waitStart);
+            puc = mClipboards.get(userId);
             if (puc == null) {
                 puc = new PerUserClipboard(userId);
                 mClipboards.put(userId, puc);
+                mClipboardsSnapshot = mClipboards.clone();
             }
+            mMetrics.lockReleased(ClipboardMetrics.LOCK_CLIPBOARDS_MAP, holdStart);
             return puc;
         }
     }
 
+    /**
+     * Installs a clip read back from the journal, unless the user has set or cleared the
+     * clip since the service started. Clips of removed users, and clips shared from a user
+     * that may no longer copy to this one, are dropped. Called on the journal thread.
+     */
+    private void restoreClip(int userId, ClipboardJournal.Entry entry) {
+        if (!userExists(userId)) {
+            // Supersede the record so the next compaction drops it.
+            mJournal.append(userId, userId, null);
+            return;
+        }
+        if (entry.sourceUserId != userId) {
+            final ProfileGroup group = getProfileGroup(entry.sourceUserId);
+            if (!group.canCopy || Arrays.binarySearch(group.userIds, userId) < 0) {
+                mJournal.append(userId, userId, null);
+                return;
+            }
+        }
+        final PerUserClipboard clipboard = getClipboard(userId);
+        synchronized (clipboard) {
+            if (clipboard.primaryClip != ClipSnapshot.EMPTY) {
+                return;
+            }
+            final ClipSnapshot snapshot = new ClipSnapshot(entry.clip, 1, Process.INVALID_UID,
+                    userId, entry.sourceUserId, 0);
+            clipboard.primaryClip = snapshot;
+            clipboard.history.add(snapshot);
+            clipboard.notifyPendingSinceNanos = ClipboardMetrics.start();
+            mDispatchHandler.sendMessage(mDispatchHandler.obtainMessage(
+                    DispatchHandler.MSG_PRIMARY_CLIP_CHANGED, clipboard));
+        }
+    }
+
+    private boolean userExists(int userId) {
+        final long origId = mInjector.clearCallingIdentity();
+        try {
+            return mUm.getUserInfo(userId) != null;
+        } catch (RemoteException e) {
+            Slog.e(TAG, "Remote Exception calling UserManager: " + e);
+            return false;
+        } finally {
+            mInjector.restoreCallingIdentity(origId);
+        }
+    }
+
     List<UserInfo> getRelatedProfiles(int userId) {
         final List<UserInfo> related;
-        final long origId = Binder.clearCallingIdentity();
+        final long origId = mInjector.clearCallingIdentity();
         try {
             related = mUm.getProfiles(userId, true);
         } catch (RemoteException e) {
             Slog.e(TAG, "Remote Exception calling UserManager: " + e);
             return null;
         } finally{
-            Binder.restoreCallingIdentity(origId);
+            mInjector.restoreCallingIdentity(origId);
         }
         return related;
     }
 
+    /**
+     * Reports clips shared between related profiles. Every item of a shared clip is one the
+     * service no longer copies per user; a user view is only built once URIs need to be
+     * rewritten for a read.
+     */
+    private void dumpSharedClips(PrintWriter pw) {
+        int sharedClips = 0;
+        int itemCopiesAvoided = 0;
+        long sharedTextChars = 0;
+        pw.println("  Clipboards: spillThresholdChars=" + mSpillThresholdChars
+                + " spillBudgetBytes=" + mSpillBudgetBytesPerUser);
+        final ArrayList<PerUserClipboard> clipboards = getClipboards();
+        for (int i = 0; i < clipboards.size(); i++) {
+            final PerUserClipboard clipboard = clipboards.get(i);
+            final ClipSnapshot snapshot = clipboard.primaryClip;
+            pw.print("    user " + clipboard.userId + ": version="
+                    + snapshot.metadata.version);
+            if (snapshot.clip == null) {
+                pw.println(" empty");
+                continue;
+            }
+            pw.print(" items=" + snapshot.metadata.itemCount
+                    + " mimeTypes=" + Arrays.toString(snapshot.metadata.mimeTypes));
+            clipboard.history.dump(pw);
+            if (clipboard.spilledBytes > 0 || clipboard.overBudgetChars > 0) {
+                pw.print(" spilledBytes=" + clipboard.spilledBytes
+                        + " overBudgetChars=" + clipboard.overBudgetChars);
+            }
+            if (snapshot.userId != snapshot.sourceUserId) {
+                pw.print(" sharedFrom=" + snapshot.sourceUserId
+                        + " userView=" + snapshot.isUserViewMaterialized());
+                sharedClips++;
+                if (!snapshot.isUserViewMaterialized()) {
+                    itemCopiesAvoided += snapshot.clip.getItemCount();
+                }
+                for (int j = snapshot.clip.getItemCount() - 1; j >= 0; j--) {
+                    final CharSequence text = snapshot.clip.getItemAt(j).getText();
+                    sharedTextChars += text != null ? text.length() : 0;
+                }
+            }
+            pw.println();
+        }
+        pw.println("    shared clips=" + sharedClips + " item copies avoided="
+                + itemCopiesAvoided + " shared text chars=" + sharedTextChars);
+    }
+
+    /**
+     * Moves the text of items at or above {@link #mSpillThresholdChars} into ashmem, within
+     * the spill budget of {@code clipboard}'s user. The budget covers every spilled clip the
+     * service keeps for the user, see {@link #getRetainedSpilledBytes}. Called with no
+     * clipboard lock held, on a clip that is not published yet, so the copy never blocks
+     * readers or writers of the clipboards.
+     */
+    private void spillLargeItems(PerUserClipboard clipboard, ClipData clip) {
+        if (clip == null || mSpillThresholdChars <= 0) {
+            return;
+        }
+        long spilledBytes = getRetainedSpilledBytes(clipboard);
+        for (int i = 0, n = clip.getItemCount(); i < n; i++) {
+            final ClipData.Item item = clip.getItemAt(i);
+            final CharSequence text = item.getText();
+            // Styled text would lose its spans, keep it as it is.
+            if (text == null || text instanceof Spanned || text instanceof SpilledText
+                    || text.length() < mSpillThresholdChars) {
+                continue;
+            }
+            final long bytes = (long) text.length() * 2;
+            if (spilledBytes + bytes > mSpillBudgetBytesPerUser) {
+                continue;
+            }
+            try {
+                final SpilledText spilled = SpilledText.spill(text);
+                clip.setItemAt(i, new ClipData.Item(spilled, item.getHtmlText(),
+                        item.getIntent(), item.getUri()));
+                spilledBytes += spilled.byteSize();
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to spill clip item, keeping it on the heap", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes of spilled text that the clips set by {@code clipboard}'s user keep
+     * alive once a new primary clip is set: those in its history, or none when the history
+     * is disabled and the primary clip is simply replaced. Clips shared from related
+     * profiles count against their source user. Reads the history without locking.
+     */
+    private long getRetainedSpilledBytes(PerUserClipboard clipboard) {
+        if (mHistoryMaxEntries <= 0) {
+            return 0;
+        }
+        final ArraySet<SpilledText> seen = new ArraySet<>();
+        long bytes = 0;
+        for (ClipSnapshot entry : clipboard.history.getEntries()) {
+            if (entry.clip == null || entry.sourceUserId != clipboard.userId) {
+                continue;
+            }
+            for (int i = entry.clip.getItemCount() - 1; i >= 0; i--) {
+                final CharSequence text = entry.clip.getItemAt(i).getText();
+                if (text instanceof SpilledText && seen.add((SpilledText) text)) {
+                    bytes += ((SpilledText) text).byteSize();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Accounts for the spilled text of {@code clip}, which is becoming the primary clip of
+     * {@code clipboard}. Only inspects the items, the spilling itself happened earlier in
+     * {@link #spillLargeItems}.
+     */
+    private void updateSpillStatsLocked(PerUserClipboard clipboard, ClipData clip) {
+        clipboard.spilledBytes = 0;
+        clipboard.overBudgetChars = 0;
+        if (clip == null || mSpillThresholdChars <= 0) {
+            return;
+        }
+        for (int i = 0, n = clip.getItemCount(); i < n; i++) {
+            final CharSequence text = clip.getItemAt(i).getText();
+            if (text instanceof SpilledText) {
+                clipboard.spilledBytes += ((SpilledText) text).byteSize();
+            } else if (text != null && !(text instanceof Spanned)
+                    && text.length() >= mSpillThresholdChars) {
+                clipboard.overBudgetChars += text.length();
+            }
+        }
+    }
+
+    /**
+     * Returns the profile group of {@code userId} from {@link #mProfileGroups}, loading it
+     * from the UserManager on the first call for that user or after an invalidation.
+     */
+    private ProfileGroup getProfileGroup(int userId) {
+        final long generation;
+        synchronized (mProfileGroups) {
+            final ProfileGroup group = mProfileGroups.get(userId);
+            if (group != null) {
+                return group;
+            }
+            generation = mProfileGroupsGeneration;
+        }
+        final List<UserInfo> related = getRelatedProfiles(userId);
+        if (related == null) {
+            // Don't remember the failure, the next write will try again.
+            return new ProfileGroup(new int[] { userId }, false);
+        }
+        final int size = related.size();
+        int[] ids = new int[size];
+        boolean hasSelf = false;
+        for (int i = 0; i < size; i++) {
+            ids[i] = related.get(i).id;
+            hasSelf |= ids[i] == userId;
+        }
+        if (!hasSelf) {
+            ids = Arrays.copyOf(ids, size + 1);
+            ids[size] = userId;
+        }
+        Arrays.sort(ids);
+        boolean canCopy = false;
+        if (ids.length > 1) {
+            final long origId = mInjector.clearCallingIdentity();
+            try {
+                canCopy = !mUm.getUserRestrictions(userId).getBoolean(
+                        UserManager.DISALLOW_CROSS_PROFILE_COPY_PASTE);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "Remote Exception calling UserManager: " + e);
+                return new ProfileGroup(ids, false);
+            } finally {
+                mInjector.restoreCallingIdentity(origId);
+            }
+        }
+        final ProfileGroup group = new ProfileGroup(ids, canCopy);
+        synchronized (mProfileGroups) {
+            if (generation == mProfileGroupsGeneration) {
+                mProfileGroups.put(userId, group);
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Removes the clips that {@code sourceUserId} shared with its related profiles, once
+     * copying out of that user is no longer allowed. A related profile whose primary clip
+     * still came from {@code sourceUserId} has it cleared, which also empties its history,
+     * so that the history keeps starting with the current primary clip.
+     */
+    private void removeSharedHistory(int sourceUserId) {
+        final ArrayList<PerUserClipboard> clipboards = getClipboards();
+        for (int i = clipboards.size() - 1; i >= 0; i--) {
+            final PerUserClipboard clipboard = clipboards.get(i);
+            synchronized (clipboard) {
+                final ClipSnapshot current = clipboard.primaryClip;
+                if (current.clip != null && current.sourceUserId == sourceUserId
+                        && clipboard.userId != sourceUserId) {
+                    setPrimaryClipInternal(clipboard, null);
+                } else {
+                    clipboard.history.removeSharedFrom(sourceUserId);
+                }
+            }
+        }
+    }
+
+    private void invalidateProfileGroups() {
+        synchronized (mProfileGroups) {
+            mProfileGroupsGeneration++;
+            mProfileGroups.clear();
+        }
+    }
+
+    /**
+     * Returns the clipboards of every member of {@code group}, sorted by user id.
+     */
+    private PerUserClipboard[] getProfileGroupClipboards(ProfileGroup group) {
+        final PerUserClipboard[] clipboards = new PerUserClipboard[group.userIds.length];
+        for (int i = 0; i < clipboards.length; i++) {
+            clipboards[i] = getClipboard(group.userIds[i]);
+        }
+        return clipboards;
+    }
+
+    /**
+     * Acquires the monitor of every clipboard in {@code clipboards}, starting at
+     * {@code index}, and runs {@code action} while holding all of them. The array must be
+     * sorted by user id so that concurrent cross-profile writers always lock in the same
+     * order and cannot deadlock.
+     */
+    private void runWithClipboardsLocked(PerUserClipboard[] clipboards, int index,
+            Runnable action) {
+        if (index == clipboards.length) {
+            action.run();
+            return;
+        }
+        final long waitStart = ClipboardMetrics.start();
+        synchronized (clipboards[index]) {
+            final long holdStart = mMetrics.lockAcquired(ClipboardMetrics.LOCK_CLIPBOARD,
+                    waitStart);
+            try {
+                runWithClipboardsLocked(clipboards, index + 1, action);
+            } finally {
+                mMetrics.lockReleased(ClipboardMetrics.LOCK_CLIPBOARD, holdStart);
+            }
+        }
+    }
+
+    /**
+     * Stores {@code clip} for the calling user and propagates it to the rest of the profile
+     * group. Caller must hold the lock of every clipboard in {@code clipboards}.
+     *
+     * @param fingerprint {@link ClipSnapshot#fingerprint} of {@code clip}, computed before
+     *         the locks were taken.
+     */
+    private void setPrimaryClipLocked(ClipData clip, int callingUid, long fingerprint,
+            PerUserClipboard[] clipboards, boolean canCopy) {
+        final int userId = UserHandle.getUserId(callingUid);
+        // Use the locked instance: getClipboard() could return a different one if the user
+        // was cleaned up since the group was resolved.
+        PerUserClipboard clipboard = null;
+        for (int i = 0; i < clipboards.length; i++) {
+            if (clipboards[i].userId == userId) {
+                clipboard = clipboards[i];
+                break;
+            }
+        }
+        revokeUris(clipboard);
+        setPrimaryClipInternal(clipboard, clip, callingUid, userId, fingerprint);
+        if (clipboards.length <= 1) {
+            return;
+        }
+        // Share the clip with related users if allowed. If disallowed, then remove
+        // primary clip in related users to prevent pasting stale content. The related
+        // users' snapshots point at the same ClipData and rewrite its URIs to this user
+        // only when they are read, see ClipSnapshot.getClip().
+        if (!canCopy) {
+            clip = null;
+        }
+        for (int i = 0; i < clipboards.length; i++) {
+            if (clipboards[i].userId != userId) {
+                setPrimaryClipInternal(clipboards[i], clip, Process.INVALID_UID, userId, 0);
+            }
+        }
+    }
+
     void setPrimaryClipInternal(PerUserClipboard clipboard, ClipData clip) {
+        setPrimaryClipInternal(clipboard, clip, Process.INVALID_UID, clipboard.userId, 0);
+    }
+
+    /**
+     * @param writerUid uid of the app that set the clip, or {@link Process#INVALID_UID} when
+     *         the clip does not come directly from an app, which disables deduplication.
+     * @param sourceUserId user the clip was set in, which differs from the clipboard's user
+     *         when the clip is shared with a related profile.
+     * @param fingerprint {@link ClipSnapshot#fingerprint} of {@code clip} when
+     *         {@code writerUid} is valid, ignored otherwise.
+     */
+    void setPrimaryClipInternal(PerUserClipboard clipboard, ClipData clip, int writerUid,
+            int sourceUserId, long fingerprint) {
         clipboard.activePermissionOwners.clear();
-        if (clip == null && clipboard.primaryClip == null) {
-            return;
+        final ClipSnapshot current = clipboard.primaryClip;
+        if (clip == null) {
+            // Clearing the clip, e.g. because it may no longer be copied from a related
+            // profile, must not leave it reachable through the history.
+            clipboard.history.clear();
+            if (current.clip == null) {
+                return;
+            }
+        }
+        if (sourceUserId == clipboard.userId) {
+            // Related profiles share this ClipData, which is only stamped once, by its
+            // owner, before any snapshot of it is published.
+            if (clip != null) {
+                final ClipDescription description = clip.getDescription();
+                if (description != null) {
+                    description.setTimestamp(System.currentTimeMillis());
+                }
+            }
+            updateSpillStatsLocked(clipboard, clip);
         }
-        clipboard.primaryClip = clip;
+        // A single volatile store publishes the new clip to lock-free readers.
+        final ClipSnapshot snapshot = new ClipSnapshot(clip, current.metadata.version + 1,
+                writerUid, clipboard.userId, sourceUserId,
+                writerUid != Process.INVALID_UID ? fingerprint : 0);
+        clipboard.primaryClip = snapshot;
         if (clip != null) {
-            final ClipDescription description = clip.getDescription();
-            if (description != null) {
-                description.setTimestamp(System.currentTimeMillis());
+            clipboard.history.add(snapshot);
+        }
+        if (mJournal != null) {
+            mJournal.append(clipboard.userId, sourceUserId, clip);
+        }
+        // Listeners are notified from the dispatcher thread once the caller has released its
+        // locks. The single dispatcher thread keeps notifications for a user in order.
+        if (mNotifyCoalesceWindowMs > 0 && mDispatchHandler.hasMessages(
+                DispatchHandler.MSG_PRIMARY_CLIP_CHANGED, clipboard)) {
+            // The pending notification has not been delivered yet and listeners will read
+            // the clip just published, so there is nothing more to send.
+            mSuppressedNotifications.incrementAndGet();
+            return;
+        }
+        clipboard.notifyPendingSinceNanos = ClipboardMetrics.start();
+        mDispatchHandler.sendMessageDelayed(mDispatchHandler.obtainMessage(
+                DispatchHandler.MSG_PRIMARY_CLIP_CHANGED, clipboard), mNotifyCoalesceWindowMs);
+    }
+
+    /**
+     * Encodes {@code text} as UTF-8 into the write side of a clip stream, one chunk at a
+     * time, so a large clip never needs a second full copy. The pipe is written without
+     * blocking; the stream is abandoned when the reader closes its end or leaves the pipe
+     * full for {@link #STREAM_WRITE_TIMEOUT_MS}.
+     */
+    private static void writeTextToPipe(CharSequence text, ParcelFileDescriptor writeSide) {
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharBuffer in = CharBuffer.wrap(text);
+        final ByteBuffer out = ByteBuffer.allocate(STREAM_CHUNK_BYTES);
+        final FileDescriptor fd = writeSide.getFileDescriptor();
+        try {
+            Os.fcntlInt(fd, OsConstants.F_SETFL, OsConstants.O_NONBLOCK);
+            boolean flushed = false;
+            while (!flushed) {
+                // Flush once all input is encoded; both steps may need several chunks.
+                final boolean flushing = !in.hasRemaining();
+                final CoderResult result = flushing
+                        ? encoder.flush(out) : encoder.encode(in, out, true);
+                flushed = flushing && result.isUnderflow();
+                out.flip();
+                writeFully(fd, out);
+                out.clear();
+            }
+        } catch (ErrnoException | IOException e) {
+            Slog.d(TAG, "Clip stream closed early: " + e.getMessage());
+        } finally {
+            IoUtils.closeQuietly(writeSide);
+        }
+    }
+
+    /**
+     * Writes all of {@code buffer} to the non-blocking {@code fd}, waiting at most
+     * {@link #STREAM_WRITE_TIMEOUT_MS} for the reader to make room each time the pipe is full.
+     */
+    private static void writeFully(FileDescriptor fd, ByteBuffer buffer)
+            throws ErrnoException, IOException {
+        final StructPollfd pollFd = new StructPollfd();
+        pollFd.fd = fd;
+        pollFd.events = (short) OsConstants.POLLOUT;
+        while (buffer.hasRemaining()) {
+            try {
+                Os.write(fd, buffer);
+                continue;
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EAGAIN) {
+                    throw e;
+                }
+            }
+            if (Os.poll(new StructPollfd[] { pollFd }, (int) STREAM_WRITE_TIMEOUT_MS) == 0) {
+                throw new IOException("Reader stalled for " + STREAM_WRITE_TIMEOUT_MS + "ms");
+            }
+        }
+    }
+
+    /**
+     * Fills in the read access of the first {@code n} broadcast listeners whose access is
+     * unknown, checking each distinct (uid, package) once however many listeners it has
+     * registered. A listener whose access could not be determined stays unknown: it misses
+     * this notification and is checked again on the next one. Must be called between
+     * beginBroadcast() and finishBroadcast().
+     */
+    private void resolveListenerAccess(
+            RemoteCallbackList<IOnPrimaryClipChangedListener> listeners, int n) {
+        ArrayMap<AccessKey, Boolean> decisions = null;
+        for (int i = 0; i < n; i++) {
+            final ListenerInfo li = (ListenerInfo) listeners.getBroadcastCookie(i);
+            if (li.mReadAccess != ListenerInfo.ACCESS_UNKNOWN) {
+                continue;
+            }
+            if (decisions == null) {
+                decisions = new ArrayMap<>();
+            }
+            final AccessKey key = new AccessKey(AppOpsManager.OP_READ_CLIPBOARD, li.mUid,
+                    li.mPackageName);
+            final Boolean allowed;
+            final int index = decisions.indexOfKey(key);
+            if (index >= 0) {
+                allowed = decisions.valueAt(index);
+            } else {
+                mListenerAccessChecks.incrementAndGet();
+                Boolean decision;
+                try {
+                    decision = clipboardAccessDecision(AppOpsManager.OP_READ_CLIPBOARD,
+                            li.mPackageName, li.mUid);
+                } catch (SecurityException e) {
+                    // checkOp() throws for MODE_ERRORED. On a binder call that goes back to
+                    // the app, but here it would take down the dispatcher thread and with it
+                    // the system server. The listener is simply denied until its mode
+                    // changes, which resets it.
+                    decision = Boolean.FALSE;
+                }
+                allowed = decision;
+                decisions.put(key, allowed);
+            }
+            if (allowed != null) {
+                li.mReadAccess = allowed
+                        ? ListenerInfo.ACCESS_ALLOWED : ListenerInfo.ACCESS_DENIED;
             }
         }
-        final long ident = Binder.clearCallingIdentity();
+    }
+
+    /**
+     * Notifies the listeners of {@code clipboard} that its primary clip changed. Only called
+     * on the dispatcher thread, which is also the only caller of beginBroadcast(), and never
+     * with a clipboard lock held.
+     */
+    private void dispatchPrimaryClipChanged(PerUserClipboard clipboard) {
+        mDispatchedNotifications.incrementAndGet();
+        final long start = ClipboardMetrics.start();
+        final long changedSince = clipboard.notifyPendingSinceNanos;
         final int n = clipboard.primaryClipListeners.beginBroadcast();
         try {
+            resolveListenerAccess(clipboard.primaryClipListeners, n);
             for (int i = 0; i < n; i++) {
                 try {
                     ListenerInfo li = (ListenerInfo)
                             clipboard.primaryClipListeners.getBroadcastCookie(i);
 
-                    if (clipboardAccessAllowed(AppOpsManager.OP_READ_CLIPBOARD, li.mPackageName,
-                                li.mUid)) {
+                    if (li.mReadAccess == ListenerInfo.ACCESS_ALLOWED) {
                         clipboard.primaryClipListeners.getBroadcastItem(i)
                                 .dispatchPrimaryClipChanged();
+                        mMetrics.end(ClipboardMetrics.NOTIFY_DELAY, changedSince);
                     }
                 } catch (RemoteException e) {
                     // The RemoteCallbackList will take care of removing
@@ -429,7 +2377,7 @@ public class ClipboardService extends SystemService {
             }
         } finally {
             clipboard.primaryClipListeners.finishBroadcast();
-            Binder.restoreCallingIdentity(ident);
+            mMetrics.end(ClipboardMetrics.BROADCAST, start);
         }
     }
 
@@ -437,7 +2385,7 @@ public class ClipboardService extends SystemService {
         if (!"content".equals(uri.getScheme())) {
             return;
         }
-        long ident = Binder.clearCallingIdentity();
+        long ident = mInjector.clearCallingIdentity();
         try {
             // This will throw SecurityException for us.
             mAm.checkGrantUriPermission(uid, null, ContentProvider.getUriWithoutUserId(uri),
@@ -445,7 +2393,7 @@ public class ClipboardService extends SystemService {
                     ContentProvider.getUserIdFromUri(uri, UserHandle.getUserId(uid)));
         } catch (RemoteException e) {
         } finally {
-            Binder.restoreCallingIdentity(ident);
+            mInjector.restoreCallingIdentity(ident);
         }
     }
 
@@ -466,33 +2414,63 @@ public class ClipboardService extends SystemService {
         }
     }
 
-    private final void grantUriLocked(Uri uri, String pkg, int userId) {
-        long ident = Binder.clearCallingIdentity();
-        try {
-            int sourceUserId = ContentProvider.getUserIdFromUri(uri, userId);
-            uri = ContentProvider.getUriWithoutUserId(uri);
-            mAm.grantUriPermissionFromOwner(mPermissionOwner, Process.myUid(), pkg,
-                    uri, Intent.FLAG_GRANT_READ_URI_PERMISSION, sourceUserId, userId);
-        } catch (RemoteException e) {
-        } finally {
-            Binder.restoreCallingIdentity(ident);
+    /**
+     * Collects the URIs of every item in {@code clip}, stripped of their user id and paired
+     * with the user they belong to, {@code defaultUserId} when they carry none. A URI
+     * that appears several times in the clip is only returned once.
+     */
+    private ArraySet<UserUri> collectUris(ClipData clip, int defaultUserId) {
+        final ArraySet<UserUri> uris = new ArraySet<>();
+        final int N = clip.getItemCount();
+        for (int i=0; i<N; i++) {
+            final ClipData.Item item = clip.getItemAt(i);
+            if (item.getUri() != null) {
+                uris.add(UserUri.of(item.getUri(), defaultUserId));
+            }
+            Intent intent = item.getIntent();
+            if (intent != null && intent.getData() != null) {
+                uris.add(UserUri.of(intent.getData(), defaultUserId));
+            }
         }
+        mUriPermissionStats.seen(N, uris.size());
+        return uris;
     }
 
-    private final void grantItemLocked(ClipData.Item item, String pkg, int userId) {
-        if (item.getUri() != null) {
-            grantUriLocked(item.getUri(), pkg, userId);
+    /**
+     * Grants {@code pkg} read access to every URI in {@code uris}, clearing the calling
+     * identity once for the whole batch.
+     */
+    private final void grantUrisLocked(ArraySet<UserUri> uris, String pkg, int userId) {
+        if (uris.isEmpty()) {
+            return;
         }
-        Intent intent = item.getIntent();
-        if (intent != null && intent.getData() != null) {
-            grantUriLocked(intent.getData(), pkg, userId);
+        final long start = ClipboardMetrics.start();
+        long ident = mInjector.clearCallingIdentity();
+        try {
+            for (int i = uris.size() - 1; i >= 0; i--) {
+                final UserUri uri = uris.valueAt(i);
+                try {
+                    mAm.grantUriPermissionFromOwner(mPermissionOwner, Process.myUid(), pkg,
+                            uri.uri, Intent.FLAG_GRANT_READ_URI_PERMISSION, uri.userId, userId);
+                } catch (RemoteException e) {
+                }
+            }
+        } finally {
+            mInjector.restoreCallingIdentity(ident);
+            mMetrics.end(ClipboardMetrics.GRANT_URIS, start);
         }
+        mUriPermissionStats.grants(uris.size());
     }
 
-    private final void addActiveOwnerLocked(int uid, String pkg) {
-        final IPackageManager pm = AppGlobals.getPackageManager();
-        final int targetUserHandle = UserHandle.getCallingUserId();
-        final long oldIdentity = Binder.clearCallingIdentity();
+    private final void checkPackageOwner(int uid, String pkg) {
+        final int targetUserHandle = UserHandle.getUserId(mInjector.getCallingUid());
+        final OwnerKey key = new OwnerKey(uid, pkg, targetUserHandle);
+        final long generation = mOwnershipCache.getGeneration();
+        if (mOwnershipCache.isVerified(key)) {
+            return;
+        }
+        final IPackageManager pm = mInjector.getPackageManager();
+        final long oldIdentity = mInjector.clearCallingIdentity();
         try {
             PackageInfo pi = pm.getPackageInfo(pkg, 0, targetUserHandle);
             if (pi == null) {
@@ -502,73 +2480,90 @@ public class ClipboardService extends SystemService {
                 throw new SecurityException("Calling uid " + uid
                         + " does not own package " + pkg);
             }
+            mOwnershipCache.markVerified(key, generation);
         } catch (RemoteException e) {
             // Can't happen; the package manager is in the same process
         } finally {
-            Binder.restoreCallingIdentity(oldIdentity);
-        }
-        PerUserClipboard clipboard = getClipboard();
-        if (clipboard.primaryClip != null && !clipboard.activePermissionOwners.contains(pkg)) {
-            final int N = clipboard.primaryClip.getItemCount();
-            for (int i=0; i<N; i++) {
-                grantItemLocked(clipboard.primaryClip.getItemAt(i), pkg, UserHandle.getUserId(uid));
-            }
-            clipboard.activePermissionOwners.add(pkg);
+            mInjector.restoreCallingIdentity(oldIdentity);
         }
     }
 
-    private final void revokeUriLocked(Uri uri) {
-        int userId = ContentProvider.getUserIdFromUri(uri,
-                UserHandle.getUserId(Binder.getCallingUid()));
-        long ident = Binder.clearCallingIdentity();
-        try {
-            uri = ContentProvider.getUriWithoutUserId(uri);
-            mAm.revokeUriPermissionFromOwner(mPermissionOwner, uri,
-                    Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION,
-                    userId);
-        } catch (RemoteException e) {
-        } finally {
-            Binder.restoreCallingIdentity(ident);
+    private final void addActiveOwnerLocked(PerUserClipboard clipboard, int uid, String pkg) {
+        final ClipData clip = clipboard.primaryClip.getClip();
+        if (clip == null || clipboard.activePermissionOwners.containsKey(pkg)) {
+            return;
         }
+        final ArraySet<UserUri> uris = collectUris(clip, UserHandle.getUserId(uid));
+        grantUrisLocked(uris, pkg, UserHandle.getUserId(uid));
+        clipboard.activePermissionOwners.put(pkg, uris);
     }
 
-    private final void revokeItemLocked(ClipData.Item item) {
-        if (item.getUri() != null) {
-            revokeUriLocked(item.getUri());
-        }
-        Intent intent = item.getIntent();
-        if (intent != null && intent.getData() != null) {
-            revokeUriLocked(intent.getData());
+    private final class LocalService extends ClipboardManagerInternal {
+        @Override
+        public List<ClipData> getPrimaryClipHistory(int userId) {
+            return getClipboard(userId).history.getClips();
         }
     }
 
     private final void revokeUris(PerUserClipboard clipboard) {
-        if (clipboard.primaryClip == null) {
+        final ClipData clip = clipboard.primaryClip.getClip();
+        if (clip == null) {
             return;
         }
-        final int N = clipboard.primaryClip.getItemCount();
-        for (int i=0; i<N; i++) {
-            revokeItemLocked(clipboard.primaryClip.getItemAt(i));
+        final ArraySet<UserUri> uris = collectUris(clip,
+                UserHandle.getUserId(mInjector.getCallingUid()));
+        if (uris.isEmpty()) {
+            return;
+        }
+        final long start = ClipboardMetrics.start();
+        long ident = mInjector.clearCallingIdentity();
+        try {
+            for (int i = uris.size() - 1; i >= 0; i--) {
+                final UserUri uri = uris.valueAt(i);
+                try {
+                    mAm.revokeUriPermissionFromOwner(mPermissionOwner, uri.uri,
+                            Intent.FLAG_GRANT_READ_URI_PERMISSION
+                                    | Intent.FLAG_GRANT_WRITE_URI_PERMISSION,
+                            uri.userId);
+                } catch (RemoteException e) {
+                }
+            }
+        } finally {
+            mInjector.restoreCallingIdentity(ident);
+            mMetrics.end(ClipboardMetrics.REVOKE_URIS, start);
         }
+        mUriPermissionStats.revokes(uris.size());
     }
 
     private boolean clipboardAccessAllowed(int op, String callingPackage, int callingUid) {
+        return mAccessCache.isAllowed(op, callingPackage, callingUid);
+    }
+
+    /**
+     * Like {@link #clipboardAccessAllowed}, but returns null instead of false when the
+     * decision could not be made, so that callers keeping their own results do not remember
+     * a transient failure as a denial.
+     */
+    private Boolean clipboardAccessDecision(int op, String callingPackage, int callingUid) {
+        return mAccessCache.getDecision(op, callingPackage, callingUid);
+    }
+
+    /**
+     * Uncached access check. Failures to reach the package or activity manager are thrown
+     * so that they are never remembered by {@link AccessDecisionCache}.
+     */
+    private boolean checkClipboardAccess(int op, String callingPackage, int callingUid)
+            throws RemoteException {
         // Check the AppOp.
         if (mAppOps.checkOp(op, callingUid, callingPackage) != AppOpsManager.MODE_ALLOWED) {
             return false;
         }
-        try {
-            // Installed apps can access the clipboard at any time.
-            if (!AppGlobals.getPackageManager().isInstantApp(callingPackage,
-                        UserHandle.getUserId(callingUid))) {
-                return true;
-            }
-            // Instant apps can only access the clipboard if they are in the foreground.
-            return mAm.isAppForeground(callingUid);
-        } catch (RemoteException e) {
-            Slog.e("clipboard", "Failed to get Instant App status for package " + callingPackage,
-                    e);
-            return false;
+        // Installed apps can access the clipboard at any time.
+        if (!mInjector.getPackageManager().isInstantApp(callingPackage,
+                    UserHandle.getUserId(callingUid))) {
+            return true;
         }
+        // Instant apps can only access the clipboard if they are in the foreground.
+        return mAm.isAppForeground(callingUid);
     }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.clipboard;
+
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Plain text kept in anonymous shared memory (ashmem) instead of on the Java heap. Nothing
+ * is written to disk, so clipboard contents never reach flash, and the region is released
+ * together with its mapping once the text is no longer referenced.
+ *
+ * Characters are read straight from the mapping; {@link #toString()} rehydrates a heap copy
+ * only when one is needed, for instance to write the text to a parcel.
+ */
+final class SpilledText implements CharSequence {
+    private final ByteBuffer mMapping;
+    private final CharBuffer mChars;
+
+    private SpilledText(ByteBuffer mapping) {
+        mMapping = mapping;
+        mChars = mapping.asCharBuffer();
+    }
+
+    /**
+     * Copies {@code text} into a new read-only ashmem region.
+     *
+     * @throws IOException if the region can't be created or mapped; {@code text} is left
+     *         untouched and can simply be kept on the heap.
+     */
+    static SpilledText spill(CharSequence text) throws IOException {
+        SharedMemory memory = null;
+        try {
+            memory = SharedMemory.create("clip", text.length() * 2);
+            final ByteBuffer writable = memory.mapReadWrite();
+            final CharBuffer chars = writable.asCharBuffer();
+            for (int i = 0, n = text.length(); i < n; i++) {
+                chars.put(text.charAt(i));
+            }
+            SharedMemory.unmap(writable);
+            memory.setProtect(OsConstants.PROT_READ);
+            return new SpilledText(memory.mapReadOnly());
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        } finally {
+            // The mapping keeps the region alive, the descriptor is not needed any more.
+            if (memory != null) {
+                memory.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the mapping.
+     */
+    long byteSize() {
+        return mMapping.capacity();
+    }
+    @Override
+    public int length() {
+        return mChars.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return mChars.get(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        // CharBuffer.toString() covers position to limit and doesn't move the position.
+        return mChars.toString();
+    }
+}